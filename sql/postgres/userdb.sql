@@ -1,5 +1,9 @@
 -- userdb.sql - Example database for a postgresql datasource
 -- See also <https://github.com/b1-systems/keycloak-user-storage-test>
+--
+-- Every table has a "realm" column holding the tenant key of the Keycloak
+-- realm (by default the realm name) the row belongs to. To create the
+-- tables partitioned by realm, run with "psql -v partitioned=1".
 
 CREATE USER userdb
     WITH ENCRYPTED PASSWORD 'userdb';
@@ -11,6 +15,8 @@ ALTER DATABASE userdb
 
 -- Define tables
 
+\if :{?partitioned}
+
 CREATE TABLE public.users (
     id character varying(255) NOT NULL,
     createdtimestamp bigint,
@@ -19,32 +25,225 @@ CREATE TABLE public.users (
     firstname character varying(255),
     lastname character varying(255),
     password_hash character varying(255),
-    username character varying(255)
+    username character varying(255),
+    last_login bigint,
+    realm character varying(255) NOT NULL DEFAULT 'master'
+) PARTITION BY LIST (realm);
+ALTER TABLE ONLY public.users
+    OWNER TO userdb;
+ALTER TABLE public.users
+    ADD CONSTRAINT u_pkey PRIMARY KEY (realm, id);
+ALTER TABLE public.users
+    ADD CONSTRAINT u_realm_username_key UNIQUE (realm, username);
+CREATE INDEX users_realm_email_idx
+    ON public.users (realm, email);
+CREATE INDEX users_realm_last_login_created_idx
+    ON public.users (realm, last_login DESC NULLS LAST,
+        createdtimestamp DESC NULLS LAST);
+-- Hibernate updates and deletes users by id alone
+CREATE INDEX users_id_idx
+    ON public.users (id);
+CREATE TABLE public.users_default
+    PARTITION OF public.users DEFAULT;
+CREATE TABLE public.users_master
+    PARTITION OF public.users FOR VALUES IN ('master');
+
+CREATE TABLE public.client_roles (
+    id character varying(255) NOT NULL,
+    client character varying(255),
+    role character varying(255),
+    realm character varying(255) NOT NULL DEFAULT 'master'
+);
+ALTER TABLE ONLY public.client_roles
+    OWNER TO userdb;
+ALTER TABLE ONLY public.client_roles
+    ADD CONSTRAINT c_pkey PRIMARY KEY (id);
+CREATE INDEX client_roles_realm_client_role_idx
+    ON public.client_roles (realm, client, role);
+
+CREATE TABLE public.users_to_client_roles (
+    user_id character varying(255) NOT NULL,
+    client_role_id character varying(255) NOT NULL,
+    realm character varying(255) NOT NULL DEFAULT 'master'
+) PARTITION BY LIST (realm);
+ALTER TABLE ONLY public.users_to_client_roles
+    OWNER TO userdb;
+ALTER TABLE public.users_to_client_roles
+    ADD CONSTRAINT u2c_pkey
+        PRIMARY KEY(realm, user_id, client_role_id);
+CREATE INDEX users_to_client_roles_realm_role_idx
+    ON public.users_to_client_roles (realm, client_role_id);
+-- Hibernate loads the role collections of a user by user_id alone
+CREATE INDEX users_to_client_roles_user_idx
+    ON public.users_to_client_roles (user_id, client_role_id);
+ALTER TABLE public.users_to_client_roles
+    ADD CONSTRAINT m2c_fkey
+        FOREIGN KEY(client_role_id)
+        REFERENCES public.client_roles(id);
+ALTER TABLE public.users_to_client_roles
+    ADD CONSTRAINT u2m2c_fkey
+        FOREIGN KEY(realm, user_id)
+        REFERENCES public.users(realm, id);
+CREATE TABLE public.users_to_client_roles_default
+    PARTITION OF public.users_to_client_roles DEFAULT;
+CREATE TABLE public.users_to_client_roles_master
+    PARTITION OF public.users_to_client_roles FOR VALUES IN ('master');
+
+CREATE TABLE public.realm_roles (
+    id character varying(255) NOT NULL,
+    role character varying(255),
+    realm character varying(255) NOT NULL DEFAULT 'master'
+);
+ALTER TABLE ONLY public.realm_roles
+    OWNER TO userdb;
+ALTER TABLE ONLY public.realm_roles
+    ADD CONSTRAINT r_pkey PRIMARY KEY (id);
+CREATE INDEX realm_roles_realm_role_idx
+    ON public.realm_roles (realm, role);
+
+CREATE TABLE public.users_to_realm_roles (
+    user_id character varying(255) NOT NULL,
+    realm_role_id character varying(255) NOT NULL,
+    realm character varying(255) NOT NULL DEFAULT 'master'
+) PARTITION BY LIST (realm);
+ALTER TABLE ONLY public.users_to_realm_roles
+    OWNER TO userdb;
+ALTER TABLE public.users_to_realm_roles
+    ADD CONSTRAINT u2r_pkey
+        PRIMARY KEY(realm, user_id, realm_role_id);
+CREATE INDEX users_to_realm_roles_realm_role_idx
+    ON public.users_to_realm_roles (realm, realm_role_id);
+CREATE INDEX users_to_realm_roles_user_idx
+    ON public.users_to_realm_roles (user_id, realm_role_id);
+ALTER TABLE public.users_to_realm_roles
+    ADD CONSTRAINT m2r_fkey
+        FOREIGN KEY(realm_role_id)
+        REFERENCES public.realm_roles(id);
+ALTER TABLE public.users_to_realm_roles
+    ADD CONSTRAINT u2m2r_fkey
+        FOREIGN KEY(realm, user_id)
+        REFERENCES public.users(realm, id);
+CREATE TABLE public.users_to_realm_roles_default
+    PARTITION OF public.users_to_realm_roles DEFAULT;
+CREATE TABLE public.users_to_realm_roles_master
+    PARTITION OF public.users_to_realm_roles FOR VALUES IN ('master');
+
+CREATE TABLE public.user_attributes (
+    id character varying(36) NOT NULL,
+    user_id character varying(255) NOT NULL,
+    name character varying(255) NOT NULL,
+    attr_value character varying(255),
+    realm character varying(255) NOT NULL DEFAULT 'master'
+) PARTITION BY LIST (realm);
+ALTER TABLE ONLY public.user_attributes
+    OWNER TO userdb;
+ALTER TABLE public.user_attributes
+    ADD CONSTRAINT a_pkey PRIMARY KEY (realm, id);
+CREATE INDEX user_attributes_user_idx
+    ON public.user_attributes (user_id, name);
+CREATE INDEX user_attributes_id_idx
+    ON public.user_attributes (id);
+CREATE INDEX user_attributes_value_idx
+    ON public.user_attributes (realm, name, attr_value);
+ALTER TABLE public.user_attributes
+    ADD CONSTRAINT u2a_fkey
+        FOREIGN KEY(realm, user_id)
+        REFERENCES public.users(realm, id);
+CREATE TABLE public.user_attributes_default
+    PARTITION OF public.user_attributes DEFAULT;
+CREATE TABLE public.user_attributes_master
+    PARTITION OF public.user_attributes FOR VALUES IN ('master');
+
+CREATE TABLE public.user_groups (
+    id character varying(255) NOT NULL,
+    path character varying(1024) NOT NULL,
+    realm character varying(255) NOT NULL DEFAULT 'master'
+);
+ALTER TABLE ONLY public.user_groups
+    OWNER TO userdb;
+ALTER TABLE ONLY public.user_groups
+    ADD CONSTRAINT g_pkey PRIMARY KEY (id);
+ALTER TABLE ONLY public.user_groups
+    ADD CONSTRAINT g_realm_path_key UNIQUE (realm, path);
+
+CREATE TABLE public.users_to_groups (
+    user_id character varying(255) NOT NULL,
+    group_id character varying(255) NOT NULL,
+    realm character varying(255) NOT NULL DEFAULT 'master'
+) PARTITION BY LIST (realm);
+ALTER TABLE ONLY public.users_to_groups
+    OWNER TO userdb;
+ALTER TABLE public.users_to_groups
+    ADD CONSTRAINT u2g_pkey
+        PRIMARY KEY(realm, user_id, group_id);
+CREATE INDEX users_to_groups_realm_group_user_idx
+    ON public.users_to_groups (realm, group_id, user_id);
+CREATE INDEX users_to_groups_user_idx
+    ON public.users_to_groups (user_id, group_id);
+ALTER TABLE public.users_to_groups
+    ADD CONSTRAINT m2g_fkey
+        FOREIGN KEY(group_id)
+        REFERENCES public.user_groups(id);
+ALTER TABLE public.users_to_groups
+    ADD CONSTRAINT u2m2g_fkey
+        FOREIGN KEY(realm, user_id)
+        REFERENCES public.users(realm, id);
+CREATE TABLE public.users_to_groups_default
+    PARTITION OF public.users_to_groups DEFAULT;
+CREATE TABLE public.users_to_groups_master
+    PARTITION OF public.users_to_groups FOR VALUES IN ('master');
+
+\else
+
+CREATE TABLE public.users (
+    id character varying(255) NOT NULL,
+    createdtimestamp bigint,
+    email character varying(255),
+    email_verified boolean DEFAULT false,
+    firstname character varying(255),
+    lastname character varying(255),
+    password_hash character varying(255),
+    username character varying(255),
+    last_login bigint,
+    realm character varying(255) NOT NULL DEFAULT 'master'
 );
 ALTER TABLE ONLY public.users
     OWNER TO userdb;
 ALTER TABLE ONLY public.users
     ADD CONSTRAINT u_pkey PRIMARY KEY (id);
+ALTER TABLE ONLY public.users
+    ADD CONSTRAINT u_realm_username_key UNIQUE (realm, username);
+CREATE INDEX users_realm_email_idx
+    ON public.users (realm, email);
+CREATE INDEX users_realm_last_login_created_idx
+    ON public.users (realm, last_login DESC NULLS LAST,
+        createdtimestamp DESC NULLS LAST);
 
 CREATE TABLE public.client_roles (
     id character varying(255) NOT NULL,
     client character varying(255),
-    role character varying(255)
+    role character varying(255),
+    realm character varying(255) NOT NULL DEFAULT 'master'
 );
 ALTER TABLE ONLY public.client_roles
     OWNER TO userdb;
 ALTER TABLE ONLY public.client_roles
     ADD CONSTRAINT c_pkey PRIMARY KEY (id);
+CREATE INDEX client_roles_realm_client_role_idx
+    ON public.client_roles (realm, client, role);
 
 CREATE TABLE public.users_to_client_roles (
     user_id character varying(255) NOT NULL,
-    client_role_id character varying(255) NOT NULL
+    client_role_id character varying(255) NOT NULL,
+    realm character varying(255) NOT NULL DEFAULT 'master'
 );
 ALTER TABLE ONLY public.users_to_client_roles
     OWNER TO userdb;
 ALTER TABLE ONLY public.users_to_client_roles
     ADD CONSTRAINT u2c_pkey
         PRIMARY KEY(user_id, client_role_id);
+CREATE INDEX users_to_client_roles_realm_role_idx
+    ON public.users_to_client_roles (realm, client_role_id);
 ALTER TABLE ONLY public.users_to_client_roles
     ADD CONSTRAINT m2c_fkey
         FOREIGN KEY(client_role_id)
@@ -56,22 +255,28 @@ ALTER TABLE ONLY public.users_to_client_roles
 
 CREATE TABLE public.realm_roles (
     id character varying(255) NOT NULL,
-    role character varying(255)
+    role character varying(255),
+    realm character varying(255) NOT NULL DEFAULT 'master'
 );
 ALTER TABLE ONLY public.realm_roles
     OWNER TO userdb;
 ALTER TABLE ONLY public.realm_roles
     ADD CONSTRAINT r_pkey PRIMARY KEY (id);
+CREATE INDEX realm_roles_realm_role_idx
+    ON public.realm_roles (realm, role);
 
 CREATE TABLE public.users_to_realm_roles (
     user_id character varying(255) NOT NULL,
-    realm_role_id character varying(255) NOT NULL
+    realm_role_id character varying(255) NOT NULL,
+    realm character varying(255) NOT NULL DEFAULT 'master'
 );
 ALTER TABLE ONLY public.users_to_realm_roles
     OWNER TO userdb;
 ALTER TABLE ONLY public.users_to_realm_roles
     ADD CONSTRAINT u2r_pkey
         PRIMARY KEY(user_id, realm_role_id);
+CREATE INDEX users_to_realm_roles_realm_role_idx
+    ON public.users_to_realm_roles (realm, realm_role_id);
 ALTER TABLE ONLY public.users_to_realm_roles
     ADD CONSTRAINT m2r_fkey
         FOREIGN KEY(realm_role_id)
@@ -81,6 +286,61 @@ ALTER TABLE ONLY public.users_to_realm_roles
         FOREIGN KEY(user_id)
         REFERENCES public.users(id);
 
+CREATE TABLE public.user_attributes (
+    id character varying(36) NOT NULL,
+    user_id character varying(255) NOT NULL,
+    name character varying(255) NOT NULL,
+    attr_value character varying(255),
+    realm character varying(255) NOT NULL DEFAULT 'master'
+);
+ALTER TABLE ONLY public.user_attributes
+    OWNER TO userdb;
+ALTER TABLE ONLY public.user_attributes
+    ADD CONSTRAINT a_pkey PRIMARY KEY (id);
+CREATE INDEX user_attributes_user_idx
+    ON public.user_attributes (user_id, name);
+CREATE INDEX user_attributes_value_idx
+    ON public.user_attributes (realm, name, attr_value);
+ALTER TABLE ONLY public.user_attributes
+    ADD CONSTRAINT u2a_fkey
+        FOREIGN KEY(user_id)
+        REFERENCES public.users(id);
+
+CREATE TABLE public.user_groups (
+    id character varying(255) NOT NULL,
+    path character varying(1024) NOT NULL,
+    realm character varying(255) NOT NULL DEFAULT 'master'
+);
+ALTER TABLE ONLY public.user_groups
+    OWNER TO userdb;
+ALTER TABLE ONLY public.user_groups
+    ADD CONSTRAINT g_pkey PRIMARY KEY (id);
+ALTER TABLE ONLY public.user_groups
+    ADD CONSTRAINT g_realm_path_key UNIQUE (realm, path);
+
+CREATE TABLE public.users_to_groups (
+    user_id character varying(255) NOT NULL,
+    group_id character varying(255) NOT NULL,
+    realm character varying(255) NOT NULL DEFAULT 'master'
+);
+ALTER TABLE ONLY public.users_to_groups
+    OWNER TO userdb;
+ALTER TABLE ONLY public.users_to_groups
+    ADD CONSTRAINT u2g_pkey
+        PRIMARY KEY(user_id, group_id);
+CREATE INDEX users_to_groups_realm_group_user_idx
+    ON public.users_to_groups (realm, group_id, user_id);
+ALTER TABLE ONLY public.users_to_groups
+    ADD CONSTRAINT m2g_fkey
+        FOREIGN KEY(group_id)
+        REFERENCES public.user_groups(id);
+ALTER TABLE ONLY public.users_to_groups
+    ADD CONSTRAINT u2m2g_fkey
+        FOREIGN KEY(user_id)
+        REFERENCES public.users(id);
+
+\endif
+
 -- Add some example data
 
 INSERT INTO public.users VALUES (
@@ -105,3 +365,9 @@ INSERT INTO public.realm_roles VALUES (
 INSERT INTO public.users_to_realm_roles VALUES (
     '1', '1'
 );
+INSERT INTO public.user_groups VALUES (
+    '1', '/testgroup'
+);
+INSERT INTO public.users_to_groups VALUES (
+    '1', '1'
+);
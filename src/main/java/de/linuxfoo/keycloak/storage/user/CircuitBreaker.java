@@ -0,0 +1,180 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import org.jboss.logging.Logger;
+
+/**
+ * Count-based circuit breaker for calls to the external user database.
+ *
+ * The outcomes of the last {@code windowSize} calls are recorded; a call
+ * fails if it throws or takes longer than {@code slowCallMillis}. When the
+ * failure rate of a full window reaches {@code failureRatePercent}, the
+ * breaker opens and rejects calls for {@code openMillis}. After that, a
+ * single probe call is let through (half-open); its outcome closes or
+ * re-opens the breaker.
+ *
+ * Every admitted call holds a {@link Permit}. Only outcomes recorded with
+ * the permit of the current state count: a call admitted while the
+ * breaker was closed that finishes after it has opened is ignored, and
+ * only the probe decides whether a half-open breaker closes. Admitting a
+ * call while the breaker is closed, which is the common case on every
+ * database call, does not lock.
+ */
+public class CircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final Logger logger = Logger
+        .getLogger(CircuitBreaker.class);
+    private final boolean[] window;
+    private final int failureRatePercent;
+    private final long slowCallMillis;
+    private final long openMillis;
+    private final BiConsumer<State, State> listener;
+    private volatile State state = State.CLOSED;
+    private volatile Permit admitting = new Permit();
+    private Permit probe;
+    private int position;
+    private int recorded;
+    private int failures;
+    private long openedAt;
+
+    public CircuitBreaker(
+        int windowSize,
+        int failureRatePercent,
+        long slowCallMillis,
+        long openMillis,
+        BiConsumer<State, State> listener
+    ) {
+        this.window = new boolean[Math.max(1, windowSize)];
+        this.failureRatePercent = failureRatePercent;
+        this.slowCallMillis = slowCallMillis;
+        this.openMillis = openMillis;
+        this.listener = listener;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the permit for a call to be made now, or null if the call is
+     * rejected. In half-open state only the probe is admitted.
+     */
+    public Permit tryAcquire() {
+        Permit permit = admitting;
+
+        return permit != null ? permit : tryAcquireSlow();
+    }
+
+    private synchronized Permit tryAcquireSlow() {
+        switch (state) {
+            case CLOSED:
+                return admitting;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openMillis) {
+                    return null;
+                }
+
+                transition(State.HALF_OPEN);
+                probe = new Permit();
+
+                return probe;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Records the outcome of a call admitted with {@code permit}.
+     */
+    public synchronized void record(
+        Permit permit,
+        boolean success,
+        long elapsedMillis
+    ) {
+        boolean failed = !success || elapsedMillis > slowCallMillis;
+
+        if (permit == probe) {
+            probe = null;
+            resetWindow();
+
+            if (failed) {
+                open();
+            } else {
+                transition(State.CLOSED);
+            }
+
+            return;
+        }
+
+        if (permit != admitting) {
+            return;
+        }
+
+        if (recorded == window.length && window[position]) {
+            failures--;
+        }
+
+        window[position] = failed;
+        position = (position + 1) % window.length;
+        recorded = Math.min(recorded + 1, window.length);
+
+        if (failed) {
+            failures++;
+        }
+
+        if (recorded == window.length &&
+            failures * 100 >= failureRatePercent * window.length) {
+            resetWindow();
+            open();
+        }
+    }
+
+    private void open() {
+        openedAt = System.currentTimeMillis();
+        transition(State.OPEN);
+    }
+
+    private void resetWindow() {
+        position = 0;
+        recorded = 0;
+        failures = 0;
+        Arrays.fill(window, false);
+    }
+
+    private void transition(State next) {
+        State previous = state;
+        state = next;
+        admitting = next == State.CLOSED ? new Permit() : null;
+
+        logger.infof("user database circuit breaker %s -> %s", previous, next);
+
+        if (listener != null) {
+            listener.accept(previous, next);
+        }
+    }
+
+    /**
+     * Admission to make one call; see {@link CircuitBreaker#tryAcquire}.
+     */
+    public static final class Permit {
+        private Permit() {
+        }
+    }
+}
@@ -27,11 +27,20 @@ import jakarta.persistence.Table;
 import java.util.HashSet;
 import java.util.Set;
 
+@NamedQueries({
+    @NamedQuery(
+        name="getClientRole",
+        query="select r from ClientRoleEntity r where r.realm = :realm and " +
+              "r.client = :client and r.role = :role"
+    )
+})
+
 @Entity
 @Table(name = "client_roles")
 public class ClientRoleEntity {
     @Id
     private String id;
+    private String realm;
     private String client;
     private String role;
     @ManyToMany(mappedBy = "clientRoles")
@@ -53,6 +62,14 @@ public class ClientRoleEntity {
         this.client = client;
     }
 
+    public String getRealm() {
+        return realm;
+    }
+
+    public void setRealm(String realm) {
+        this.realm = realm;
+    }
+
     public String getRole() {
         return role;
     }
@@ -0,0 +1,48 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import java.util.function.Consumer;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+
+/**
+ * Sends invalidation events through Keycloak's {@link ClusterProvider}, so
+ * that they reach every node of the cluster.
+ */
+public class ClusterInvalidationChannel implements InvalidationChannel {
+    public static final String TASK_KEY =
+        UserStorageTestProviderFactory.PROVIDER_ID + "-invalidation";
+    private final ClusterProvider cluster;
+
+    public ClusterInvalidationChannel(ClusterProvider cluster) {
+        this.cluster = cluster;
+    }
+
+    @Override
+    public void publish(UserInvalidationEvent event) {
+        cluster.notify(TASK_KEY, event, true, ClusterProvider.DCNotify.ALL_DCS);
+    }
+
+    @Override
+    public void subscribe(Consumer<UserInvalidationEvent> listener) {
+        cluster.registerListener(TASK_KEY, (ClusterEvent event) -> {
+            if (event instanceof UserInvalidationEvent) {
+                listener.accept((UserInvalidationEvent)event);
+            }
+        });
+    }
+}
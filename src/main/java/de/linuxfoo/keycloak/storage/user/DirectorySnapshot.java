@@ -0,0 +1,305 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Read-only view of a directory snapshot file written by
+ * {@link DirectorySnapshotBuilder}. The file is memory-mapped; a lookup
+ * binary-searches one of the indexes and decodes only the matching user
+ * record, so the snapshot takes next to no heap regardless of the number
+ * of users.
+ *
+ * File layout, all numbers big-endian:
+ * <pre>
+ *  0  int   magic "UST1"
+ *  4  int   format version
+ *  8  long  creation time (ms since the epoch)
+ * 16  int   number of users
+ * 20  int   offset of the id index        32  its number of entries
+ * 24  int   offset of the username index  36  its number of entries
+ * 28  int   offset of the email index     40  its number of entries
+ * 64        user records, then the three indexes
+ * </pre>
+ * An index entry is a long holding the hash of "realm\0key" in its upper
+ * and the offset of the user record in its lower 32 bits; entries are
+ * sorted, so a lookup finds all records with the same hash and compares
+ * the keys of these records.
+ *
+ * A user record is a sequence of strings (int byte length, -1 for null,
+ * followed by UTF-8 bytes) and numbers: realm, id, username, email, first
+ * name, last name, password hash, created timestamp (long), last login
+ * (long), email verified (byte), then the client roles (int count; id,
+ * realm, client, role), realm roles (int count; id, realm, role), groups
+ * (int count; id, realm, path) and indexed attributes (int count; id,
+ * name, value). Missing numbers are stored as {@link Long#MIN_VALUE}.
+ */
+public class DirectorySnapshot {
+    static final int MAGIC = 0x55535431;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int ID_INDEX = 20;
+    static final int USERNAME_INDEX = 24;
+    static final int EMAIL_INDEX = 28;
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private final long createdAt;
+    private final int size;
+
+    private DirectorySnapshot(Path file, MappedByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+        this.createdAt = buffer.getLong(8);
+        this.size = buffer.getInt(16);
+    }
+
+    /**
+     * Maps the snapshot file, checking its header.
+     */
+    public static DirectorySnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE ||
+                channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("invalid snapshot size: " + file);
+            }
+
+            MappedByteBuffer buffer = channel.map(
+                FileChannel.MapMode.READ_ONLY,
+                0,
+                channel.size()
+            );
+
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("not a user snapshot: " + file);
+            }
+
+            return new DirectorySnapshot(file, buffer);
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public UserEntity getById(String realm, String id) {
+        return find(ID_INDEX, 1, realm, id);
+    }
+
+    public UserEntity getByUsername(String realm, String username) {
+        return find(USERNAME_INDEX, 2, realm, username);
+    }
+
+    public UserEntity getByEmail(String realm, String email) {
+        return find(EMAIL_INDEX, 3, realm, email);
+    }
+
+    static int hash(String realm, String key) {
+        return (realm + '\0' + key).hashCode();
+    }
+
+    /**
+     * Looks up a record in the index whose header slot is {@code index},
+     * comparing the realm and the string field at position {@code field}
+     * of candidate records.
+     */
+    private UserEntity find(int index, int field, String realm, String key) {
+        if (realm == null || key == null) {
+            return null;
+        }
+
+        int start = buffer.getInt(index);
+        int count = buffer.getInt(index + 12);
+        int hash = hash(realm, key);
+        int low = 0;
+        int high = count;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            if ((int)(buffer.getLong(start + mid * 8) >> 32) < hash) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        for (int i = low; i < count; i++) {
+            long entry = buffer.getLong(start + i * 8);
+
+            if ((int)(entry >> 32) != hash) {
+                break;
+            }
+
+            int offset = (int)entry;
+
+            if (realm.equals(readString(offset)) &&
+                key.equals(readField(offset, field))) {
+                return readUser(offset);
+            }
+        }
+
+        return null;
+    }
+
+    private String readField(int offset, int field) {
+        int position = offset;
+
+        for (int i = 0; i < field; i++) {
+            position = skipString(position);
+        }
+
+        return readString(position);
+    }
+
+    private UserEntity readUser(int offset) {
+        Reader reader = new Reader(buffer, offset);
+        UserEntity user = new UserEntity();
+        user.setRealm(reader.string());
+        user.setId(reader.string());
+        user.setUsername(reader.string());
+        user.setEmail(reader.string());
+        user.setFirstName(reader.string());
+        user.setLastName(reader.string());
+        user.setPasswordHash(reader.string());
+        user.setCreatedTimestamp(reader.number());
+        user.setLastLogin(reader.number());
+        user.setEmailVerified(reader.flag());
+
+        Set<ClientRoleEntity> clientRoles = new HashSet<ClientRoleEntity>();
+
+        for (int i = reader.count(); i > 0; i--) {
+            ClientRoleEntity role = new ClientRoleEntity();
+            role.setId(reader.string());
+            role.setRealm(reader.string());
+            role.setClient(reader.string());
+            role.setRole(reader.string());
+            clientRoles.add(role);
+        }
+
+        user.setClientRoles(clientRoles);
+
+        Set<RealmRoleEntity> realmRoles = new HashSet<RealmRoleEntity>();
+
+        for (int i = reader.count(); i > 0; i--) {
+            RealmRoleEntity role = new RealmRoleEntity();
+            role.setId(reader.string());
+            role.setRealm(reader.string());
+            role.setRole(reader.string());
+            realmRoles.add(role);
+        }
+
+        user.setRealmRoles(realmRoles);
+
+        Set<GroupEntity> groups = new HashSet<GroupEntity>();
+
+        for (int i = reader.count(); i > 0; i--) {
+            GroupEntity group = new GroupEntity();
+            group.setId(reader.string());
+            group.setRealm(reader.string());
+            group.setPath(reader.string());
+            groups.add(group);
+        }
+
+        user.setGroups(groups);
+
+        Set<UserAttributeEntity> attributes =
+            new HashSet<UserAttributeEntity>();
+
+        for (int i = reader.count(); i > 0; i--) {
+            UserAttributeEntity attribute = new UserAttributeEntity();
+            attribute.setId(reader.string());
+            attribute.setRealm(user.getRealm());
+            attribute.setUser(user);
+            attribute.setName(reader.string());
+            attribute.setValue(reader.string());
+            attributes.add(attribute);
+        }
+
+        user.setAttributes(attributes);
+
+        return user;
+    }
+
+    private String readString(int position) {
+        return new Reader(buffer, position).string();
+    }
+
+    private int skipString(int position) {
+        int length = buffer.getInt(position);
+
+        return position + 4 + Math.max(0, length);
+    }
+
+    private static final class Reader {
+        private final ByteBuffer buffer;
+        private int position;
+
+        private Reader(ByteBuffer buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        private String string() {
+            int length = buffer.getInt(position);
+            position += 4;
+
+            if (length < 0) {
+                return null;
+            }
+
+            byte[] bytes = new byte[length];
+            buffer.get(position, bytes);
+            position += length;
+
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private Long number() {
+            long value = buffer.getLong(position);
+            position += 8;
+
+            return value == Long.MIN_VALUE ? null : value;
+        }
+
+        private boolean flag() {
+            return buffer.get(position++) != 0;
+        }
+
+        private int count() {
+            int count = buffer.getInt(position);
+            position += 4;
+
+            return count;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Writes a {@link DirectorySnapshot} of the users of all realms served by
+ * the provider. Users are read by id in chunks, each in a transaction of
+ * its own, and written to a temporary file that replaces the snapshot
+ * file atomically once it is complete. The snapshot holds password
+ * hashes, so the file is created readable by its owner only.
+ */
+public class DirectorySnapshotBuilder {
+    private static final Logger logger = Logger
+        .getLogger(DirectorySnapshotBuilder.class);
+    private final KeycloakSessionFactory factory;
+    private final SqlTracer tracer;
+    private final int chunkSize;
+
+    public DirectorySnapshotBuilder(
+        KeycloakSessionFactory factory,
+        SqlTracer tracer,
+        int chunkSize
+    ) {
+        this.factory = factory;
+        this.tracer = tracer;
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Builds the snapshot file and returns the number of users written.
+     */
+    public int build(Path file) throws IOException {
+        long start = System.currentTimeMillis();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        List<String> tenants = KeycloakModelUtils.runJobInTransactionWithResult(
+            factory,
+            session -> session.realms()
+                .getRealmsStream()
+                .flatMap(UserStorageTestProviderFactory::getTenants)
+                .distinct()
+                .collect(Collectors.toList())
+        );
+        Index ids = new Index();
+        Index usernames = new Index();
+        Index emails = new Index();
+        int[] offsets = new int[3];
+
+        try {
+            createPrivate(temp);
+
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp), 65536))) {
+                out.write(new byte[DirectorySnapshot.HEADER_SIZE]);
+
+                for (String tenant : tenants) {
+                    String after = "";
+
+                    while (after != null) {
+                        after = writeChunk(out, tenant, after, ids, usernames, emails);
+                    }
+                }
+
+                offsets[0] = writeIndex(out, ids);
+                offsets[1] = writeIndex(out, usernames);
+                offsets[2] = writeIndex(out, emails);
+
+                if (out.size() == Integer.MAX_VALUE) {
+                    throw new IOException("user snapshot exceeds 2 GB");
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            try (RandomAccessFile header = new RandomAccessFile(temp.toFile(), "rw")) {
+                header.writeInt(DirectorySnapshot.MAGIC);
+                header.writeInt(DirectorySnapshot.VERSION);
+                header.writeLong(start);
+                header.writeInt(ids.size);
+                header.writeInt(offsets[0]);
+                header.writeInt(offsets[1]);
+                header.writeInt(offsets[2]);
+                header.writeInt(ids.size);
+                header.writeInt(usernames.size);
+                header.writeInt(emails.size);
+                header.getChannel().force(true);
+            }
+
+            Files.move(
+                temp,
+                file,
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING
+            );
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        logger.infof(
+            "wrote snapshot of %d users to %s in %d ms",
+            ids.size,
+            file,
+            System.currentTimeMillis() - start
+        );
+
+        return ids.size;
+    }
+
+    /**
+     * Creates an empty file that only its owner may read and write. The
+     * permissions are set when the file is created, so that it is never
+     * readable by others; file systems without POSIX permissions fall back
+     * to their defaults.
+     */
+    private static void createPrivate(Path file) throws IOException {
+        Files.deleteIfExists(file);
+
+        try {
+            Files.createFile(
+                file,
+                PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")
+                )
+            );
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(file);
+        }
+    }
+
+    /**
+     * Writes the users of the tenant following {@code after}; returns the
+     * last id written, or null if the tenant has no further users.
+     */
+    private String writeChunk(
+        DataOutputStream out,
+        String tenant,
+        String after,
+        Index ids,
+        Index usernames,
+        Index emails
+    ) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+            EntityManager em = session
+                .getProvider(JpaConnectionProvider.class, "user-store")
+                .getEntityManager();
+            TypedQuery<UserEntity> query = em
+                .createNamedQuery("getUsersAfter", UserEntity.class)
+                .setParameter("realm", tenant)
+                .setParameter("after", after)
+                .setMaxResults(chunkSize);
+            List<UserEntity> users = tracer.trace(
+                "buildSnapshot",
+                "getUsersAfter",
+                List.of("realm", "after"),
+                query::getResultList
+            );
+
+            try {
+                for (UserEntity user : users) {
+                    int offset = out.size();
+
+                    if (offset == Integer.MAX_VALUE) {
+                        throw new IOException("user snapshot exceeds 2 GB");
+                    }
+
+                    ids.add(DirectorySnapshot.hash(tenant, user.getId()), offset);
+
+                    if (user.getUsername() != null) {
+                        usernames.add(
+                            DirectorySnapshot.hash(tenant, user.getUsername()),
+                            offset
+                        );
+                    }
+
+                    if (user.getEmail() != null) {
+                        emails.add(
+                            DirectorySnapshot.hash(tenant, user.getEmail()),
+                            offset
+                        );
+                    }
+
+                    writeUser(out, user);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return users.size() < chunkSize ?
+                null :
+                users.get(users.size() - 1).getId();
+        });
+    }
+
+    private static void writeUser(DataOutputStream out, UserEntity user)
+    throws IOException {
+        writeString(out, user.getRealm());
+        writeString(out, user.getId());
+        writeString(out, user.getUsername());
+        writeString(out, user.getEmail());
+        writeString(out, user.getFirstName());
+        writeString(out, user.getLastName());
+        writeString(out, user.getPasswordHash());
+        writeNumber(out, user.getCreatedTimestamp());
+        writeNumber(out, user.getLastLogin());
+        out.writeByte(user.getEmailVerified() ? 1 : 0);
+
+        out.writeInt(user.getClientRoles().size());
+
+        for (ClientRoleEntity role : user.getClientRoles()) {
+            writeString(out, role.getId());
+            writeString(out, role.getRealm());
+            writeString(out, role.getClient());
+            writeString(out, role.getRole());
+        }
+
+        out.writeInt(user.getRealmRoles().size());
+
+        for (RealmRoleEntity role : user.getRealmRoles()) {
+            writeString(out, role.getId());
+            writeString(out, role.getRealm());
+            writeString(out, role.getRole());
+        }
+
+        out.writeInt(user.getGroups().size());
+
+        for (GroupEntity group : user.getGroups()) {
+            writeString(out, group.getId());
+            writeString(out, group.getRealm());
+            writeString(out, group.getPath());
+        }
+
+        out.writeInt(user.getAttributes().size());
+
+        for (UserAttributeEntity attribute : user.getAttributes()) {
+            writeString(out, attribute.getId());
+            writeString(out, attribute.getName());
+            writeString(out, attribute.getValue());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value)
+    throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeNumber(DataOutputStream out, Long value)
+    throws IOException {
+        out.writeLong(value == null ? Long.MIN_VALUE : value);
+    }
+
+    private static int writeIndex(DataOutputStream out, Index index)
+    throws IOException {
+        int offset = out.size();
+        Arrays.sort(index.entries, 0, index.size);
+
+        for (int i = 0; i < index.size; i++) {
+            out.writeLong(index.entries[i]);
+        }
+
+        return offset;
+    }
+
+    /**
+     * Growable array of index entries, see {@link DirectorySnapshot}.
+     */
+    private static final class Index {
+        private long[] entries = new long[1024];
+        private int size;
+
+        private void add(int hash, int offset) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+
+            entries[size++] = ((long)hash << 32) | (offset & 0xffffffffL);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.jboss.logging.Logger;
+
+/**
+ * Holds the current {@link DirectorySnapshot} of this node and replaces
+ * it with a freshly built one periodically or on request. An existing
+ * snapshot file is mapped at startup, so that users can be served before
+ * the user database is reachable; a failed rebuild keeps the previous
+ * snapshot.
+ */
+public class DirectorySnapshotManager {
+    private static final Logger logger = Logger
+        .getLogger(DirectorySnapshotManager.class);
+    private final AtomicReference<DirectorySnapshot> current =
+        new AtomicReference<DirectorySnapshot>();
+    private final AtomicBoolean rebuildPending = new AtomicBoolean();
+    private final Path file;
+    private final DirectorySnapshotBuilder builder;
+    private final long refreshIntervalMillis;
+    private final ScheduledExecutorService executor;
+
+    public DirectorySnapshotManager(
+        Path file,
+        DirectorySnapshotBuilder builder,
+        long refreshIntervalMillis
+    ) {
+        this.file = file;
+        this.builder = builder;
+        this.refreshIntervalMillis = refreshIntervalMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(
+                r,
+                UserStorageTestProviderFactory.PROVIDER_ID + "-snapshot"
+            );
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the current snapshot, or null if none has been built yet.
+     */
+    public DirectorySnapshot current() {
+        return current.get();
+    }
+
+    /**
+     * Maps an existing snapshot file and schedules the rebuilds. The first
+     * rebuild is due when the existing snapshot has reached the refresh
+     * interval, or at once if there is none.
+     */
+    public void start() {
+        long initialDelay = 0L;
+
+        if (Files.exists(file)) {
+            try {
+                DirectorySnapshot snapshot = DirectorySnapshot.open(file);
+                current.set(snapshot);
+                initialDelay = Math.max(
+                    0L,
+                    snapshot.getCreatedAt() + refreshIntervalMillis -
+                        System.currentTimeMillis()
+                );
+                logger.infof(
+                    "loaded snapshot of %d users from %s",
+                    snapshot.size(),
+                    file
+                );
+            } catch (IOException e) {
+                logger.warnf(e, "could not load snapshot %s", file);
+            }
+        }
+
+        if (refreshIntervalMillis > 0) {
+            executor.scheduleWithFixedDelay(
+                this::rebuild,
+                initialDelay,
+                refreshIntervalMillis,
+                TimeUnit.MILLISECONDS
+            );
+        } else if (current.get() == null) {
+            requestRebuild();
+        }
+    }
+
+    /**
+     * Schedules a rebuild unless one is already waiting to run.
+     */
+    public void requestRebuild() {
+        if (rebuildPending.compareAndSet(false, true)) {
+            executor.execute(this::rebuild);
+        }
+    }
+
+    private void rebuild() {
+        rebuildPending.set(false);
+
+        try {
+            builder.build(file);
+            current.set(DirectorySnapshot.open(file));
+        } catch (IOException | RuntimeException e) {
+            logger.warnf(
+                e,
+                "could not rebuild snapshot %s, keeping the previous one",
+                file
+            );
+        }
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+}
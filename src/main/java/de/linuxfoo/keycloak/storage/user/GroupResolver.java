@@ -0,0 +1,108 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Resolves the group paths stored in the user database to Keycloak
+ * groups. Finding a group by its path walks the group tree, so the
+ * resolved group id is remembered per realm and path for a short time;
+ * the group itself is then read by id through Keycloak's realm cache. A
+ * remembered id is used only while the group still exists under the same
+ * path. Missing groups are not remembered, so that a group created in
+ * Keycloak is found by the next lookup.
+ */
+public class GroupResolver {
+    private final Map<String, Resolution> resolutions =
+        new ConcurrentHashMap<String, Resolution>();
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    public GroupResolver(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns the group with the given path, or null if the realm has no
+     * such group.
+     */
+    public GroupModel resolve(
+        KeycloakSession session,
+        RealmModel realm,
+        String path
+    ) {
+        String key = key(realm, path);
+        Resolution resolution = resolutions.get(key);
+        long now = System.currentTimeMillis();
+
+        if (resolution != null && now - resolution.resolvedAt <= ttlMillis) {
+            GroupModel group = session
+                .groups()
+                .getGroupById(realm, resolution.groupId);
+
+            if (group != null &&
+                path.equals(KeycloakModelUtils.buildGroupPath(group))) {
+                return group;
+            }
+        }
+
+        GroupModel group = KeycloakModelUtils
+            .findGroupByPath(session, realm, path);
+
+        if (group == null) {
+            resolutions.remove(key);
+        } else if (ttlMillis > 0 && maxEntries > 0) {
+            if (resolutions.size() >= maxEntries) {
+                resolutions.clear();
+            }
+
+            resolutions.put(key, new Resolution(group.getId(), now));
+        }
+
+        return group;
+    }
+
+    /**
+     * Forgets all resolutions of the realm, e.g. after a group has been
+     * moved or removed.
+     */
+    public void invalidate(RealmModel realm) {
+        String prefix = realm.getId() + '\0';
+
+        resolutions.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    private static String key(RealmModel realm, String path) {
+        return realm.getId() + '\0' + path;
+    }
+
+    private static final class Resolution {
+        private final String groupId;
+        private final long resolvedAt;
+
+        private Resolution(String groupId, long resolvedAt) {
+            this.groupId = groupId;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import java.util.function.Consumer;
+
+/**
+ * Transport for {@link UserInvalidationEvent}s between the nodes that share
+ * the external user database.
+ */
+public interface InvalidationChannel {
+    void publish(UserInvalidationEvent event);
+
+    void subscribe(Consumer<UserInvalidationEvent> listener);
+}
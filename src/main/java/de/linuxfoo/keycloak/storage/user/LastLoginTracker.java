@@ -0,0 +1,261 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import io.micrometer.core.instrument.Counter;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.hibernate.Session;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Write-behind buffer for the {@code last_login} column of the users table.
+ * Users are identified by their realm column and id, joined by
+ * {@link #key}.
+ *
+ * Successful password verifications are recorded in memory, coalesced per
+ * user, and written periodically with batched JDBC updates, so that logins
+ * do not cause a synchronous write. Recorded values are kept for a while
+ * after they have been written, so that the {@code lastLogin} attribute
+ * stays current while the user is cached. The number of users tracked at
+ * a time is bounded; when the bound is reached, written values are
+ * evicted early, and only logins that find every tracked value still
+ * unwritten are counted and dropped.
+ */
+public class LastLoginTracker {
+    public static final String ATTRIBUTE = "lastLogin";
+    private static final String UPDATE =
+        "UPDATE users SET last_login = ? " +
+        "WHERE realm = ? AND id = ? " +
+        "AND (last_login IS NULL OR last_login < ?)";
+    private static final List<String> PARAMETERS =
+        List.of("last_login", "realm", "id", "last_login");
+    private static final Logger logger = Logger
+        .getLogger(LastLoginTracker.class);
+    private static final Counter dropped = UserStorageMetrics
+        .counter("last.login.dropped");
+    private final Map<String, Long> recorded =
+        new ConcurrentHashMap<String, Long>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final Set<String> writing = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final KeycloakSessionFactory factory;
+    private final SqlTracer tracer;
+    private final int maxEntries;
+    private final int batchSize;
+    private final long retentionMillis;
+    private final ScheduledExecutorService executor;
+
+    public LastLoginTracker(
+        KeycloakSessionFactory factory,
+        SqlTracer tracer,
+        int maxEntries,
+        int batchSize,
+        long flushIntervalMillis,
+        long retentionMillis
+    ) {
+        this.factory = factory;
+        this.tracer = tracer;
+        this.maxEntries = maxEntries;
+        this.batchSize = Math.max(1, batchSize);
+        this.retentionMillis = retentionMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(
+                r,
+                UserStorageTestProviderFactory.PROVIDER_ID + "-last-login"
+            );
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        executor.scheduleWithFixedDelay(
+            this::flushQuietly,
+            flushIntervalMillis,
+            flushIntervalMillis,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    public void record(String realm, String id) {
+        String key = key(realm, id);
+
+        if (recorded.size() >= maxEntries && !recorded.containsKey(key)) {
+            if (evicting.compareAndSet(false, true)) {
+                try {
+                    evictWritten(Long.MAX_VALUE, Math.max(1, maxEntries / 10));
+                } finally {
+                    evicting.set(false);
+                }
+            }
+
+            if (recorded.size() >= maxEntries) {
+                dropped.increment();
+
+                return;
+            }
+        }
+
+        recorded.merge(key, System.currentTimeMillis(), Math::max);
+        dirty.add(key);
+    }
+
+    /**
+     * Returns the last login recorded on this node that may not be visible
+     * in the database or in cached users yet, or null.
+     */
+    public Long getLastLogin(String realm, String id) {
+        return recorded.get(key(realm, id));
+    }
+
+    public void flush() {
+        List<String> batch = new ArrayList<String>(batchSize);
+        Iterator<String> it = dirty.iterator();
+
+        while (it.hasNext()) {
+            String key = it.next();
+            // in flight until written, so that evictWritten keeps the value
+            writing.add(key);
+            it.remove();
+            batch.add(key);
+
+            if (batch.size() >= batchSize || !it.hasNext()) {
+                write(batch);
+                batch = new ArrayList<String>(batchSize);
+            }
+        }
+
+        evictWritten(
+            System.currentTimeMillis() - retentionMillis,
+            Integer.MAX_VALUE
+        );
+    }
+
+    /**
+     * Removes up to {@code limit} values recorded before {@code before}
+     * that have been written. Values that are being written or change
+     * concurrently are kept.
+     */
+    private void evictWritten(long before, int limit) {
+        int evicted = 0;
+
+        for (Map.Entry<String, Long> entry : recorded.entrySet()) {
+            if (evicted >= limit) {
+                break;
+            }
+
+            if (entry.getValue() < before &&
+                !dirty.contains(entry.getKey()) &&
+                !writing.contains(entry.getKey()) &&
+                recorded.remove(entry.getKey(), entry.getValue())) {
+                evicted++;
+            }
+        }
+    }
+
+    public void close() {
+        executor.shutdown();
+
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        logger.infof("writing %d pending last logins", dirty.size());
+        flushQuietly();
+    }
+
+    private void write(List<String> keys) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(factory, session -> tracer
+                .traceUpdate(
+                    "flush",
+                    "UPDATE users SET last_login",
+                    PARAMETERS,
+                    () -> write(session, keys)
+                )
+            );
+        } catch (RuntimeException e) {
+            logger.warnf(e, "could not write %d last logins", keys.size());
+            dirty.addAll(keys);
+            throw e;
+        } finally {
+            writing.removeAll(keys);
+        }
+    }
+
+    /**
+     * Writes the last logins as one JDBC batch and returns the number of
+     * updated rows.
+     */
+    private int write(KeycloakSession session, List<String> keys) {
+        return session
+            .getProvider(JpaConnectionProvider.class, "user-store")
+            .getEntityManager()
+            .unwrap(Session.class)
+            .doReturningWork(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(UPDATE)) {
+                    for (String key : keys) {
+                        Long timestamp = recorded.get(key);
+
+                        if (timestamp == null) {
+                            continue;
+                        }
+
+                        int separator = key.indexOf('\0');
+                        ps.setLong(1, timestamp);
+                        ps.setString(2, key.substring(0, separator));
+                        ps.setString(3, key.substring(separator + 1));
+                        ps.setLong(4, timestamp);
+                        ps.addBatch();
+                    }
+
+                    int updated = 0;
+
+                    for (int count : ps.executeBatch()) {
+                        updated += Math.max(0, count);
+                    }
+
+                    return updated;
+                }
+            });
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // logged in write(), ids will be retried on the next run
+        }
+    }
+
+    private static String key(String realm, String id) {
+        return realm + '\0' + id;
+    }
+}
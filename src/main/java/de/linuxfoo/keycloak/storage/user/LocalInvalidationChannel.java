@@ -0,0 +1,44 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * In-JVM stand-in for the cluster: delivers every event synchronously to
+ * all subscribers of the same channel instance. Used when no
+ * {@link org.keycloak.cluster.ClusterProvider} is available, and in tests
+ * to connect several {@link UserCacheInvalidator}s as if they were
+ * separate nodes.
+ */
+public class LocalInvalidationChannel implements InvalidationChannel {
+    private final List<Consumer<UserInvalidationEvent>> listeners =
+        new CopyOnWriteArrayList<Consumer<UserInvalidationEvent>>();
+
+    @Override
+    public void publish(UserInvalidationEvent event) {
+        for (Consumer<UserInvalidationEvent> listener : listeners) {
+            listener.accept(event);
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<UserInvalidationEvent> listener) {
+        listeners.add(listener);
+    }
+}
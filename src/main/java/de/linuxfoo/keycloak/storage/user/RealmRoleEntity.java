@@ -26,11 +26,20 @@ import jakarta.persistence.Table;
 import java.util.HashSet;
 import java.util.Set;
 
+@NamedQueries({
+    @NamedQuery(
+        name="getRealmRole",
+        query="select r from RealmRoleEntity r " +
+              "where r.realm = :realm and r.role = :role"
+    )
+})
+
 @Entity
 @Table(name = "realm_roles")
 public class RealmRoleEntity {
     @Id
     private String id;
+    private String realm;
     private String role;
     @ManyToMany(mappedBy = "realmRoles")
     private Set<UserEntity> users = new HashSet<UserEntity>();
@@ -43,6 +52,14 @@ public class RealmRoleEntity {
         this.id = id;
     }
 
+    public String getRealm() {
+        return realm;
+    }
+
+    public void setRealm(String realm) {
+        this.realm = realm;
+    }
+
     public String getRole() {
         return role;
     }
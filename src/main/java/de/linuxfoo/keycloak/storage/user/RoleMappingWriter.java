@@ -0,0 +1,368 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import org.hibernate.Session;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Collects the role grants and revocations of a Keycloak transaction and
+ * writes them to {@code users_to_client_roles} and
+ * {@code users_to_realm_roles} just before the transaction commits, as
+ * multi-row INSERT and DELETE statements of up to {@link #MAX_ROWS} rows.
+ *
+ * Until then the pending changes are visible to the session through
+ * {@link #getClientRoles} and {@link #getRealmRoles}. The role collections
+ * of {@link UserEntity} are left untouched, so that Hibernate does not
+ * write the join tables itself. The statements are traced with the
+ * {@link SqlTracer} of the component that first changed a mapping in the
+ * transaction.
+ */
+public class RoleMappingWriter {
+    public static final int MAX_ROWS = 500;
+    private static final String ATTRIBUTE =
+        RoleMappingWriter.class.getName();
+    private final Mappings<ClientRoleEntity> clientRoles =
+        new Mappings<ClientRoleEntity>(
+            "users_to_client_roles",
+            "client_role_id",
+            ClientRoleEntity::getId
+        );
+    private final Mappings<RealmRoleEntity> realmRoles =
+        new Mappings<RealmRoleEntity>(
+            "users_to_realm_roles",
+            "realm_role_id",
+            RealmRoleEntity::getId
+        );
+    private final Map<String, String> realms = new HashMap<String, String>();
+    private final SqlTracer tracer;
+
+    private RoleMappingWriter(SqlTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Returns the writer of the session's transaction, creating and
+     * enlisting it on first use.
+     */
+    public static RoleMappingWriter of(
+        KeycloakSession session,
+        SqlTracer tracer
+    ) {
+        RoleMappingWriter writer = find(session);
+
+        if (writer == null) {
+            final RoleMappingWriter created = new RoleMappingWriter(tracer);
+            session.setAttribute(ATTRIBUTE, created);
+            session.getTransactionManager().enlistPrepare(
+                new AbstractKeycloakTransaction() {
+                    @Override
+                    protected void commitImpl() {
+                        session.removeAttribute(ATTRIBUTE);
+                        created.flush(session);
+                    }
+
+                    @Override
+                    protected void rollbackImpl() {
+                        session.removeAttribute(ATTRIBUTE);
+                    }
+                }
+            );
+            writer = created;
+        }
+
+        return writer;
+    }
+
+    /**
+     * Returns the client roles of the user including the changes pending
+     * in the session.
+     */
+    public static Set<ClientRoleEntity> getClientRoles(
+        KeycloakSession session,
+        UserEntity user
+    ) {
+        RoleMappingWriter writer = find(session);
+
+        return writer == null ?
+            user.getClientRoles() :
+            writer.clientRoles.view(user.getId(), user.getClientRoles());
+    }
+
+    /**
+     * Returns the realm roles of the user including the changes pending
+     * in the session.
+     */
+    public static Set<RealmRoleEntity> getRealmRoles(
+        KeycloakSession session,
+        UserEntity user
+    ) {
+        RoleMappingWriter writer = find(session);
+
+        return writer == null ?
+            user.getRealmRoles() :
+            writer.realmRoles.view(user.getId(), user.getRealmRoles());
+    }
+
+    public void grant(UserEntity user, ClientRoleEntity role) {
+        realms.put(user.getId(), user.getRealm());
+        clientRoles.grant(user.getId(), role);
+    }
+
+    public void grant(UserEntity user, RealmRoleEntity role) {
+        realms.put(user.getId(), user.getRealm());
+        realmRoles.grant(user.getId(), role);
+    }
+
+    public void revoke(UserEntity user, ClientRoleEntity role) {
+        realms.put(user.getId(), user.getRealm());
+        clientRoles.revoke(user.getId(), role);
+    }
+
+    public void revoke(UserEntity user, RealmRoleEntity role) {
+        realms.put(user.getId(), user.getRealm());
+        realmRoles.revoke(user.getId(), role);
+    }
+
+    private void flush(KeycloakSession session) {
+        if (clientRoles.isEmpty() && realmRoles.isEmpty()) {
+            return;
+        }
+
+        Session hibernate = session
+            .getProvider(JpaConnectionProvider.class, "user-store")
+            .getEntityManager()
+            .unwrap(Session.class);
+
+        // roles created in this transaction must exist before their mappings
+        hibernate.flush();
+        write(hibernate, clientRoles);
+        write(hibernate, realmRoles);
+    }
+
+    private void write(Session hibernate, Mappings<?> mappings) {
+        List<String> columns = List.of("realm", "user_id", mappings.roleColumn);
+
+        if (!mappings.revokes.isEmpty()) {
+            tracer.traceUpdate(
+                "deleteRoleMapping",
+                "DELETE FROM " + mappings.table,
+                columns,
+                () -> hibernate.doReturningWork(
+                    connection -> mappings.delete(connection, realms)
+                )
+            );
+        }
+
+        if (!mappings.grants.isEmpty()) {
+            tracer.traceUpdate(
+                "grantRole",
+                "INSERT INTO " + mappings.table,
+                columns,
+                () -> hibernate.doReturningWork(
+                    connection -> mappings.insert(connection, realms)
+                )
+            );
+        }
+    }
+
+    private static RoleMappingWriter find(KeycloakSession session) {
+        return (RoleMappingWriter)session.getAttribute(ATTRIBUTE);
+    }
+
+    /**
+     * Pending changes of one mapping table, by user id and role id.
+     */
+    private static final class Mappings<R> {
+        private final String table;
+        private final String roleColumn;
+        private final Function<R, String> idOf;
+        private final Map<String, Map<String, R>> grants =
+            new LinkedHashMap<String, Map<String, R>>();
+        private final Map<String, Map<String, R>> revokes =
+            new LinkedHashMap<String, Map<String, R>>();
+
+        private Mappings(
+            String table,
+            String roleColumn,
+            Function<R, String> idOf
+        ) {
+            this.table = table;
+            this.roleColumn = roleColumn;
+            this.idOf = idOf;
+        }
+
+        private boolean isEmpty() {
+            return grants.isEmpty() && revokes.isEmpty();
+        }
+
+        /**
+         * Grants the role; a grant cancels a pending revocation, whose
+         * row is still in the table.
+         */
+        private void grant(String userId, R role) {
+            if (remove(revokes, userId, role) == null) {
+                grants
+                    .computeIfAbsent(userId, k -> new LinkedHashMap<String, R>())
+                    .put(idOf.apply(role), role);
+            }
+        }
+
+        /**
+         * Revokes the role; a revocation cancels a pending grant, whose
+         * row has not been written yet.
+         */
+        private void revoke(String userId, R role) {
+            if (remove(grants, userId, role) == null) {
+                revokes
+                    .computeIfAbsent(userId, k -> new LinkedHashMap<String, R>())
+                    .put(idOf.apply(role), role);
+            }
+        }
+
+        private R remove(Map<String, Map<String, R>> pending, String userId, R role) {
+            Map<String, R> roles = pending.get(userId);
+
+            if (roles == null) {
+                return null;
+            }
+
+            R removed = roles.remove(idOf.apply(role));
+
+            if (roles.isEmpty()) {
+                pending.remove(userId);
+            }
+
+            return removed;
+        }
+
+        private Set<R> view(String userId, Set<R> stored) {
+            Map<String, R> granted = grants
+                .getOrDefault(userId, Collections.<String, R>emptyMap());
+            Map<String, R> revoked = revokes
+                .getOrDefault(userId, Collections.<String, R>emptyMap());
+
+            if (granted.isEmpty() && revoked.isEmpty()) {
+                return stored;
+            }
+
+            Set<R> roles = new LinkedHashSet<R>();
+
+            for (R role : stored) {
+                String id = idOf.apply(role);
+
+                if (!revoked.containsKey(id) && !granted.containsKey(id)) {
+                    roles.add(role);
+                }
+            }
+
+            roles.addAll(granted.values());
+
+            return roles;
+        }
+
+        private int delete(Connection connection, Map<String, String> realms)
+        throws SQLException {
+            return execute(
+                connection,
+                "DELETE FROM " + table + " WHERE " + key() + " IN (%s)",
+                rows(revokes, realms)
+            );
+        }
+
+        private int insert(Connection connection, Map<String, String> realms)
+        throws SQLException {
+            return execute(
+                connection,
+                "INSERT INTO " + table + " " + key() + " VALUES %s",
+                rows(grants, realms)
+            );
+        }
+
+        private String key() {
+            return "(realm, user_id, " + roleColumn + ")";
+        }
+
+        private List<String[]> rows(
+            Map<String, Map<String, R>> pending,
+            Map<String, String> realms
+        ) {
+            List<String[]> rows = new ArrayList<String[]>();
+
+            for (Map.Entry<String, Map<String, R>> user : pending.entrySet()) {
+                for (String roleId : user.getValue().keySet()) {
+                    rows.add(new String[] {
+                        realms.get(user.getKey()),
+                        user.getKey(),
+                        roleId
+                    });
+                }
+            }
+
+            return rows;
+        }
+
+        /**
+         * Runs the statement for chunks of up to {@link #MAX_ROWS} rows,
+         * replacing %s by one parameter tuple per row, and returns the
+         * number of changed rows.
+         */
+        private static int execute(
+            Connection connection,
+            String statement,
+            List<String[]> rows
+        ) throws SQLException {
+            int changed = 0;
+
+            for (int start = 0; start < rows.size(); start += MAX_ROWS) {
+                List<String[]> chunk =
+                    rows.subList(start, Math.min(start + MAX_ROWS, rows.size()));
+                String sql = statement.replace(
+                    "%s",
+                    String.join(", ", Collections.nCopies(chunk.size(), "(?, ?, ?)"))
+                );
+
+                try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    int index = 1;
+
+                    for (String[] row : chunk) {
+                        for (String value : row) {
+                            ps.setString(index++, value);
+                        }
+                    }
+
+                    changed += ps.executeUpdate();
+                }
+            }
+
+            return changed;
+        }
+    }
+}
@@ -0,0 +1,493 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.hibernate.Session;
+import org.hibernate.jdbc.ReturningWork;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Checks at startup whether the user database supports the provider's
+ * queries. It runs EXPLAIN on hand-written SQL in {@link #QUERIES} that
+ * mirrors each named query, the loading of the role, group and attribute
+ * collections of a user and the updates of users by id, and logs the
+ * estimated cost and any full table scans. The SQL is not taken from
+ * Hibernate, so it has to be kept in line with the named queries: same
+ * tables, conditions and order. It looks up the indexes and unique constraints of
+ * the lookup columns and mapping tables in the JDBC metadata, and logs
+ * DDL for the missing ones in the syntax of the connected database
+ * (PostgreSQL, or MariaDB/MySQL). On tables partitioned by realm, unique
+ * constraints must include the realm column and indexes cannot be created
+ * concurrently; the DDL takes this into account.
+ */
+public class SchemaAdvisor {
+    private static final Logger logger = Logger
+        .getLogger(SchemaAdvisor.class);
+    private static final Pattern COST =
+        Pattern.compile("cost=[0-9.]+\\.\\.([0-9.]+)");
+    private static final Pattern SEQ_SCAN =
+        Pattern.compile("Seq Scan on (\\w+)");
+    private static final List<Index> INDEXES = Arrays.asList(
+        new Index("u_realm_username_key", "users", true, "realm", "username"),
+        new Index("users_realm_email_idx", "users", false, "realm", "email"),
+        new Index("users_realm_last_login_created_idx", "users", false, "realm", "last_login DESC NULLS LAST", "createdtimestamp DESC NULLS LAST"),
+        new Index("client_roles_realm_client_role_idx", "client_roles", false, "realm", "client", "role"),
+        new Index("realm_roles_realm_role_idx", "realm_roles", false, "realm", "role"),
+        new Index("users_id_idx", "users", false, "id"),
+        new Index("u2c_pkey", "users_to_client_roles", true, "user_id", "client_role_id"),
+        new Index("users_to_client_roles_user_idx", "users_to_client_roles", false, "user_id", "client_role_id"),
+        new Index("users_to_client_roles_realm_role_idx", "users_to_client_roles", false, "realm", "client_role_id"),
+        new Index("u2r_pkey", "users_to_realm_roles", true, "user_id", "realm_role_id"),
+        new Index("users_to_realm_roles_user_idx", "users_to_realm_roles", false, "user_id", "realm_role_id"),
+        new Index("users_to_realm_roles_realm_role_idx", "users_to_realm_roles", false, "realm", "realm_role_id"),
+        new Index("g_realm_path_key", "user_groups", true, "realm", "path"),
+        new Index("u2g_pkey", "users_to_groups", true, "user_id", "group_id"),
+        new Index("users_to_groups_user_idx", "users_to_groups", false, "user_id", "group_id"),
+        new Index("users_to_groups_realm_group_user_idx", "users_to_groups", false, "realm", "group_id", "user_id"),
+        new Index("user_attributes_id_idx", "user_attributes", false, "id"),
+        new Index("user_attributes_user_idx", "user_attributes", false, "user_id", "name"),
+        new Index("user_attributes_value_idx", "user_attributes", false, "realm", "name", "attr_value")
+    );
+    /**
+     * The SQL to explain, by named query, collection role or update. The
+     * ordering uses PostgreSQL syntax; see {@link #toDialect}.
+     */
+    static final Map<String, String> QUERIES =
+        new TreeMap<String, String>();
+
+    static {
+        QUERIES.put("getUserById",
+            "SELECT * FROM users WHERE realm = ? AND id = ?");
+        QUERIES.put("getUserByUsername",
+            "SELECT * FROM users WHERE realm = ? AND username = ?");
+        QUERIES.put("getUserByEmail",
+            "SELECT * FROM users WHERE realm = ? AND email = ?");
+        QUERIES.put("getUserCount",
+            "SELECT count(*) FROM users WHERE realm = ?");
+        QUERIES.put("getAllUsers",
+            "SELECT * FROM users WHERE realm = ?");
+        QUERIES.put("getRecentlyActiveUserIds",
+            "SELECT id FROM users WHERE realm IN (?) " +
+            "ORDER BY last_login DESC NULLS LAST, " +
+            "createdTimestamp DESC NULLS LAST LIMIT 100");
+        QUERIES.put("getUsersAfter",
+            "SELECT * FROM users WHERE realm = ? AND id > ? " +
+            "ORDER BY id LIMIT 1000");
+        QUERIES.put("searchForUser",
+            "SELECT * FROM users WHERE realm = ? AND " +
+            "(lower(username) LIKE ? OR email LIKE ?) " +
+            "ORDER BY username LIMIT 100");
+        QUERIES.put("searchForUserByAttribute",
+            "SELECT u.* FROM users u " +
+            "JOIN user_attributes a ON a.user_id = u.id " +
+            "WHERE u.realm = ? AND a.realm = ? AND a.name = ? AND a.attr_value = ? " +
+            "ORDER BY u.username");
+        QUERIES.put("getGroupMembersAfter",
+            "SELECT u.* FROM users u " +
+            "JOIN users_to_groups ug ON ug.user_id = u.id " +
+            "JOIN user_groups g ON g.id = ug.group_id " +
+            "WHERE u.realm = ? AND g.realm = ? AND g.path = ? AND u.id > ? " +
+            "ORDER BY u.id LIMIT 500");
+        QUERIES.put("getUsersWithRoles",
+            "SELECT DISTINCT u.*, c.*, r.* FROM users u " +
+            "LEFT JOIN users_to_client_roles ucr ON ucr.user_id = u.id " +
+            "LEFT JOIN client_roles c ON c.id = ucr.client_role_id " +
+            "LEFT JOIN users_to_realm_roles urr ON urr.user_id = u.id " +
+            "LEFT JOIN realm_roles r ON r.id = urr.realm_role_id " +
+            "WHERE u.realm IN (?) AND u.id IN (?)");
+        QUERIES.put("getClientRoleNamesOfUsers",
+            "SELECT u.id, r.client, r.role FROM users u " +
+            "JOIN users_to_client_roles ucr ON ucr.user_id = u.id " +
+            "JOIN client_roles r ON r.id = ucr.client_role_id " +
+            "WHERE u.realm = ? AND u.id IN (?)");
+        QUERIES.put("getRealmRoleNamesOfUsers",
+            "SELECT u.id, r.role FROM users u " +
+            "JOIN users_to_realm_roles urr ON urr.user_id = u.id " +
+            "JOIN realm_roles r ON r.id = urr.realm_role_id " +
+            "WHERE u.realm = ? AND u.id IN (?)");
+        QUERIES.put("getClientRole",
+            "SELECT * FROM client_roles " +
+            "WHERE realm = ? AND client = ? AND role = ?");
+        QUERIES.put("getRealmRole",
+            "SELECT * FROM realm_roles WHERE realm = ? AND role = ?");
+        // collection loads and updates, keyed by id alone
+        QUERIES.put("UserEntity.clientRoles",
+            "SELECT r.* FROM users_to_client_roles ucr " +
+            "JOIN client_roles r ON r.id = ucr.client_role_id " +
+            "WHERE ucr.user_id = ?");
+        QUERIES.put("UserEntity.realmRoles",
+            "SELECT r.* FROM users_to_realm_roles urr " +
+            "JOIN realm_roles r ON r.id = urr.realm_role_id " +
+            "WHERE urr.user_id = ?");
+        QUERIES.put("UserEntity.groups",
+            "SELECT g.* FROM users_to_groups ug " +
+            "JOIN user_groups g ON g.id = ug.group_id " +
+            "WHERE ug.user_id = ?");
+        QUERIES.put("UserEntity.attributes",
+            "SELECT * FROM user_attributes WHERE user_id = ?");
+        QUERIES.put("update UserEntity",
+            "UPDATE users SET firstname = ? WHERE id = ?");
+        QUERIES.put("delete UserAttributeEntity",
+            "DELETE FROM user_attributes WHERE id = ?");
+    }
+
+    private final KeycloakSessionFactory factory;
+
+    public SchemaAdvisor(KeycloakSessionFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Runs the advisor on a background thread.
+     */
+    public void start() {
+        Thread thread = new Thread(
+            () -> {
+                try {
+                    run();
+                } catch (RuntimeException e) {
+                    logger.warn("schema advisor failed", e);
+                }
+            },
+            UserStorageTestProviderFactory.PROVIDER_ID + "-schema-advisor"
+        );
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Logs the query plans and missing indexes; returns the suggested
+     * DDL statements.
+     */
+    public List<String> run() {
+        String product = withConnection(connection -> connection
+            .getMetaData()
+            .getDatabaseProductName());
+        boolean postgres = product.toLowerCase().contains("postgres");
+        Set<String> partitioned = postgres ?
+            withConnection(SchemaAdvisor::getPartitionedTables) :
+            new TreeSet<String>();
+        boolean searchScans = false;
+
+        for (Map.Entry<String, String> query : QUERIES.entrySet()) {
+            try {
+                Plan plan = withConnection(connection -> explain(
+                    connection,
+                    toDialect(query.getValue(), postgres)
+                ));
+
+                if (plan.fullScans.isEmpty()) {
+                    logger.infof(
+                        "schema advisor: %s uses indexes, %s",
+                        query.getKey(),
+                        plan.estimate
+                    );
+                } else {
+                    logger.warnf(
+                        "schema advisor: %s scans all rows of %s, %s",
+                        query.getKey(),
+                        String.join(", ", plan.fullScans),
+                        plan.estimate
+                    );
+                    searchScans |= query.getKey().equals("searchForUser");
+                }
+            } catch (RuntimeException e) {
+                logger.warnf(
+                    "schema advisor: could not explain %s: %s",
+                    query.getKey(),
+                    e.getMessage()
+                );
+            }
+        }
+
+        List<String> ddl = new ArrayList<String>();
+
+        for (Index index : INDEXES) {
+            boolean isPartitioned = partitioned.contains(index.table);
+
+            try {
+                if (!withConnection(connection ->
+                    index.existsIn(connection, isPartitioned))) {
+                    logger.warnf(
+                        "schema advisor: missing %s on %s(%s)",
+                        index.unique ? "unique constraint" : "index",
+                        index.table,
+                        String.join(", ", index.getColumns(isPartitioned))
+                    );
+                    ddl.add(index.toDdl(postgres, isPartitioned));
+                }
+            } catch (RuntimeException e) {
+                logger.warnf(
+                    "schema advisor: could not read indexes of %s: %s",
+                    index.table,
+                    e.getMessage()
+                );
+            }
+        }
+
+        if (searchScans && postgres) {
+            // substring searches cannot use B-tree indexes
+            String create = partitioned.contains("users") ?
+                "CREATE INDEX IF NOT EXISTS " :
+                "CREATE INDEX CONCURRENTLY IF NOT EXISTS ";
+
+            ddl.add("CREATE EXTENSION IF NOT EXISTS pg_trgm;");
+            ddl.add(
+                create + "users_username_trgm_idx ON users " +
+                "USING gin (lower(username) gin_trgm_ops);"
+            );
+            ddl.add(
+                create + "users_email_trgm_idx ON users " +
+                "USING gin (email gin_trgm_ops);"
+            );
+        }
+
+        if (ddl.isEmpty()) {
+            logger.info("schema advisor: all expected indexes exist");
+        } else {
+            logger.warnf(
+                "schema advisor: suggested DDL for %s:%n%s",
+                product,
+                String.join(System.lineSeparator(), ddl)
+            );
+        }
+
+        return ddl;
+    }
+
+    private <T> T withConnection(ReturningWork<T> work) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(
+            factory,
+            session -> session
+                .getProvider(JpaConnectionProvider.class, "user-store")
+                .getEntityManager()
+                .unwrap(Session.class)
+                .doReturningWork(work)
+        );
+    }
+
+    /**
+     * Returns the names of the partitioned tables of a PostgreSQL database.
+     */
+    private static Set<String> getPartitionedTables(Connection connection)
+    throws SQLException {
+        Set<String> tables = new TreeSet<String>();
+
+        try (PreparedStatement ps = connection.prepareStatement(
+            "SELECT relname FROM pg_catalog.pg_class WHERE relkind = 'p'"
+        );
+            ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                tables.add(rs.getString(1));
+            }
+        }
+
+        return tables;
+    }
+
+    /**
+     * Adapts the SQL to the connected database. MariaDB and MySQL have no
+     * NULLS LAST, but sort nulls last in descending order anyway.
+     */
+    static String toDialect(String sql, boolean postgres) {
+        return postgres ? sql : sql.replace(" NULLS LAST", "");
+    }
+
+    /**
+     * Explains the statement with empty strings for all parameters. Reads
+     * the text plan of PostgreSQL or the tabular plan of MariaDB/MySQL.
+     */
+    private static Plan explain(Connection connection, String sql)
+    throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("EXPLAIN " + sql)) {
+            int parameters = sql.length() - sql.replace("?", "").length();
+
+            for (int i = 1; i <= parameters; i++) {
+                ps.setString(i, "");
+            }
+
+            try (ResultSet rs = ps.executeQuery()) {
+                ResultSetMetaData meta = rs.getMetaData();
+                Plan plan = new Plan();
+
+                if (meta.getColumnCount() == 1) {
+                    while (rs.next()) {
+                        String line = rs.getString(1);
+                        Matcher cost = COST.matcher(line);
+                        Matcher scan = SEQ_SCAN.matcher(line);
+
+                        if (plan.estimate == null && cost.find()) {
+                            plan.estimate = "estimated cost " + cost.group(1);
+                        }
+
+                        while (scan.find()) {
+                            plan.fullScans.add(scan.group(1));
+                        }
+                    }
+                } else {
+                    long rows = 0;
+
+                    while (rs.next()) {
+                        if ("ALL".equalsIgnoreCase(rs.getString("type"))) {
+                            plan.fullScans.add(rs.getString("table"));
+                        }
+
+                        rows += rs.getLong("rows");
+                    }
+
+                    plan.estimate = "estimated rows " + rows;
+                }
+
+                if (plan.estimate == null) {
+                    plan.estimate = "no estimate";
+                }
+
+                return plan;
+            }
+        }
+    }
+
+    private static final class Plan {
+        private String estimate;
+        private final Set<String> fullScans = new TreeSet<String>();
+    }
+
+    /**
+     * An index the provider's queries rely on. An existing index covers
+     * it if its leading columns are the expected ones; a unique constraint
+     * needs exactly the expected columns, which on a partitioned table
+     * start with the realm column, the partition key. A column may be
+     * followed by its order, e.g. "last_login DESC NULLS LAST"; only the
+     * direction is compared, since the JDBC metadata has no null order.
+     */
+    private static final class Index {
+        private final String name;
+        private final String table;
+        private final boolean unique;
+        private final List<String> columns;
+
+        private Index(String name, String table, boolean unique, String... columns) {
+            this.name = name;
+            this.table = table;
+            this.unique = unique;
+            this.columns = Arrays.asList(columns);
+        }
+
+        private List<String> getColumns(boolean partitioned) {
+            if (unique && partitioned && !columns.contains("realm")) {
+                List<String> withRealm = new ArrayList<String>();
+                withRealm.add("realm");
+                withRealm.addAll(columns);
+
+                return withRealm;
+            }
+
+            return columns;
+        }
+
+        private boolean existsIn(Connection connection, boolean partitioned)
+        throws SQLException {
+            List<String> expected = new ArrayList<String>();
+
+            for (String column : getColumns(partitioned)) {
+                String[] words = column.split(" ");
+                expected.add(words.length > 1 && words[1].equals("DESC") ?
+                    words[0] + " desc" :
+                    words[0]);
+            }
+
+            DatabaseMetaData meta = connection.getMetaData();
+            String tableName = meta.storesUpperCaseIdentifiers() ?
+                table.toUpperCase() :
+                table;
+            Map<String, TreeMap<Integer, String>> indexes =
+                new TreeMap<String, TreeMap<Integer, String>>();
+            Set<String> uniqueIndexes = new TreeSet<String>();
+
+            try (ResultSet rs = meta.getIndexInfo(null, null, tableName, false, true)) {
+                while (rs.next()) {
+                    String index = rs.getString("INDEX_NAME");
+                    String column = rs.getString("COLUMN_NAME");
+
+                    if (index == null || column == null) {
+                        continue;
+                    }
+
+                    if ("D".equals(rs.getString("ASC_OR_DESC"))) {
+                        column += " desc";
+                    }
+
+                    indexes
+                        .computeIfAbsent(index, k -> new TreeMap<Integer, String>())
+                        .put(rs.getInt("ORDINAL_POSITION"), column.toLowerCase());
+
+                    if (!rs.getBoolean("NON_UNIQUE")) {
+                        uniqueIndexes.add(index);
+                    }
+                }
+            }
+
+            for (Map.Entry<String, TreeMap<Integer, String>> index :
+                    indexes.entrySet()) {
+                List<String> existing =
+                    new ArrayList<String>(index.getValue().values());
+                boolean covers = unique ?
+                    existing.equals(expected) &&
+                        uniqueIndexes.contains(index.getKey()) :
+                    existing.size() >= expected.size() &&
+                        existing.subList(0, expected.size()).equals(expected);
+
+                if (covers) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Returns the DDL creating the index. PostgreSQL cannot build an
+         * index on a partitioned table concurrently, so there it blocks
+         * writes to the table while it is built.
+         */
+        private String toDdl(boolean postgres, boolean partitioned) {
+            return "CREATE " + (unique ? "UNIQUE " : "") + "INDEX " +
+                (postgres && !partitioned ? "CONCURRENTLY " : "") +
+                (postgres ? "IF NOT EXISTS " : "") +
+                name + " ON " + table +
+                " (" + toDialect(String.join(", ", getColumns(partitioned)), postgres) +
+                ");";
+        }
+    }
+}
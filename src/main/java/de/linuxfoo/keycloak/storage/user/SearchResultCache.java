@@ -0,0 +1,139 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, node-local cache of user search result pages, shared by all
+ * sessions of the provider factory. A page is kept as the list of the
+ * external ids it contained, keyed by tenant, search pattern, offset and
+ * limit, for a short time to live; the users themselves are read through
+ * the {@link UserCache}. Only pages with a limit of at most
+ * {@code maxPageSize} users are cached, so that the cache stays small and
+ * unlimited searches keep streaming their results.
+ *
+ * Any write to any user drops all pages, since it can change the result
+ * of every search. As in the {@link UserCache}, a loader reads the epoch
+ * before querying the database and passes it to {@link #put}, which drops
+ * the page if an invalidation happened in the meantime.
+ */
+public class SearchResultCache {
+    private final Map<String, Page> pages = new ConcurrentHashMap<String, Page>();
+    private final AtomicLong epoch = new AtomicLong();
+    private final int maxEntries;
+    private final int maxPageSize;
+    private final long ttlMillis;
+
+    public SearchResultCache(int maxEntries, int maxPageSize, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.maxPageSize = maxPageSize;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0 && maxPageSize > 0 && ttlMillis > 0;
+    }
+
+    /**
+     * Returns true if pages with the given limit are cached; a negative
+     * limit stands for no limit.
+     */
+    public boolean isCacheable(int max) {
+        return isEnabled() && max >= 0 && max <= maxPageSize;
+    }
+
+    public long epoch() {
+        return epoch.get();
+    }
+
+    /**
+     * Returns the ids of the cached page, or null if the page is not
+     * cached or has expired.
+     */
+    public List<String> get(String tenant, String pattern, int first, int max) {
+        String key = key(tenant, pattern, first, max);
+        Page page = pages.get(key);
+
+        if (page == null) {
+            return null;
+        }
+
+        if (System.currentTimeMillis() - page.cachedAt > ttlMillis) {
+            pages.remove(key, page);
+
+            return null;
+        }
+
+        return page.ids;
+    }
+
+    /**
+     * Caches a page unless a user has been written since {@code loadEpoch}
+     * was read.
+     */
+    public void put(
+        String tenant,
+        String pattern,
+        int first,
+        int max,
+        List<String> ids,
+        long loadEpoch
+    ) {
+        if (!isCacheable(max) || ids.size() > max ||
+            epoch.get() != loadEpoch) {
+            return;
+        }
+
+        if (pages.size() >= maxEntries) {
+            pages.clear();
+        }
+
+        String key = key(tenant, pattern, first, max);
+        Page page = new Page(List.copyOf(ids), System.currentTimeMillis());
+        pages.put(key, page);
+
+        if (epoch.get() != loadEpoch) {
+            pages.remove(key, page);
+        }
+    }
+
+    public void invalidate() {
+        epoch.incrementAndGet();
+        pages.clear();
+    }
+
+    public int size() {
+        return pages.size();
+    }
+
+    private static String key(String tenant, String pattern, int first, int max) {
+        return tenant + '\0' + pattern + '\0' + first + '\0' + max;
+    }
+
+    private static final class Page {
+        private final List<String> ids;
+        private final long cachedAt;
+
+        private Page(List<String> ids, long cachedAt) {
+            this.ids = ids;
+            this.cachedAt = cachedAt;
+        }
+    }
+}
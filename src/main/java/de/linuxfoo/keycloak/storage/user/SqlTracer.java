@@ -0,0 +1,223 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import org.hibernate.Hibernate;
+import org.jboss.logging.Logger;
+import org.keycloak.component.ComponentModel;
+
+/**
+ * Logs database calls of the provider that exceed a latency threshold,
+ * plus a random sample of all calls. Each entry names the SPI method, the
+ * named query or statement, the bind parameter names (values are never
+ * logged), the row count, or the exception for calls that failed, and the
+ * elapsed time.
+ *
+ * Thresholds are read from the component configuration, so they can be
+ * changed per provider instance in the admin console. Background jobs that
+ * do not belong to a component, such as the warm-up, use the thresholds of
+ * the provider factory's configuration.
+ */
+public class SqlTracer {
+    public static final String THRESHOLD = "sqlTraceThreshold";
+    public static final String SAMPLE_RATE = "sqlTraceSampleRate";
+    private static final List<String> BATCH_FETCH_PARAMETERS = List.of("ids");
+    private static final Logger logger = Logger
+        .getLogger(SqlTracer.class.getPackage().getName() + ".sql");
+    private final String component;
+    private final long thresholdMillis;
+    private final double sampleRate;
+
+    public SqlTracer(ComponentModel model) {
+        this(
+            model.getName(),
+            parseLong(model.get(THRESHOLD), 500L),
+            parseDouble(model.get(SAMPLE_RATE), 0.0)
+        );
+    }
+
+    public SqlTracer(String component, long thresholdMillis, double sampleRate) {
+        this.component = component;
+        this.thresholdMillis = thresholdMillis;
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Runs a query and logs it if it is slow or sampled.
+     */
+    public <T> T trace(
+        String method,
+        String statement,
+        Collection<String> parameters,
+        Supplier<T> action
+    ) {
+        return trace(
+            method,
+            statement,
+            parameters,
+            action,
+            SqlTracer::outcome
+        );
+    }
+
+    /**
+     * Runs an INSERT, UPDATE or DELETE that returns the number of changed
+     * rows and logs it if it is slow or sampled.
+     */
+    public int traceUpdate(
+        String method,
+        String statement,
+        Collection<String> parameters,
+        Supplier<Integer> action
+    ) {
+        return trace(
+            method,
+            statement,
+            parameters,
+            action,
+            count -> "changed " + count + " rows"
+        );
+    }
+
+    /**
+     * Loads a lazy collection or proxy of an entity, tracing the query that
+     * Hibernate runs for it, which fetches the association of up to
+     * hibernate.default_batch_fetch_size entities at once. Loaded values are
+     * returned as they are.
+     */
+    public <T> T initialize(String method, String association, T value) {
+        if (Hibernate.isInitialized(value)) {
+            return value;
+        }
+
+        return trace(method, association, BATCH_FETCH_PARAMETERS, () -> {
+            Hibernate.initialize(value);
+
+            return value;
+        });
+    }
+
+    private <T> T trace(
+        String method,
+        String statement,
+        Collection<String> parameters,
+        Supplier<T> action,
+        Function<T, String> outcome
+    ) {
+        if (thresholdMillis < 0 && sampleRate <= 0.0) {
+            return action.get();
+        }
+
+        long start = System.nanoTime();
+        T result = null;
+        RuntimeException failure = null;
+
+        try {
+            result = action.get();
+
+            return result;
+        } catch (RuntimeException e) {
+            failure = e;
+
+            throw e;
+        } finally {
+            long elapsed = (System.nanoTime() - start) / 1000000L;
+
+            if (thresholdMillis >= 0 && elapsed >= thresholdMillis) {
+                logger.warnf(
+                    "slow query in %s: %s.%s(%s) %s in %d ms",
+                    component,
+                    method,
+                    statement,
+                    redact(parameters),
+                    describe(result, failure, outcome),
+                    elapsed
+                );
+            } else if (sampleRate > 0.0 &&
+                ThreadLocalRandom.current().nextDouble() < sampleRate) {
+                logger.infof(
+                    "sampled query in %s: %s.%s(%s) %s in %d ms",
+                    component,
+                    method,
+                    statement,
+                    redact(parameters),
+                    describe(result, failure, outcome),
+                    elapsed
+                );
+            }
+        }
+    }
+
+    private static String redact(Collection<String> parameters) {
+        StringBuilder sb = new StringBuilder();
+
+        for (String parameter : parameters) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+
+            sb.append(parameter).append("=?");
+        }
+
+        return sb.toString();
+    }
+
+    private static <T> String describe(
+        T result,
+        RuntimeException failure,
+        Function<T, String> outcome
+    ) {
+        return failure != null ?
+            "failed with " + failure.getClass().getSimpleName() :
+            outcome.apply(result);
+    }
+
+    private static String outcome(Object result) {
+        if (result == null) {
+            return "returned nothing";
+        } else if (result instanceof Collection) {
+            return "returned " + ((Collection<?>)result).size() + " rows";
+        } else if (result instanceof Stream) {
+            return "returned streamed rows";
+        } else {
+            return "returned a value";
+        }
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        try {
+            return value == null ? defaultValue : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static double parseDouble(String value, double defaultValue) {
+        try {
+            return value == null ?
+                defaultValue :
+                Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
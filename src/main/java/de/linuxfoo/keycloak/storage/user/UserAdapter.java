@@ -16,16 +16,25 @@
 package de.linuxfoo.keycloak.storage.user;
 
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.jboss.logging.Logger;
 import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ModelException;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.RoleModel;
 import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
@@ -40,23 +49,148 @@ extends AbstractUserAdapterFederatedStorage
     protected UserEntity entity;
     protected String keycloakId;
     protected EntityManager em;
+    protected UserCacheInvalidator invalidator;
+    protected LastLoginTracker lastLoginTracker;
+    protected GroupResolver groupResolver;
+    protected SqlTracer tracer;
     private boolean readOnly;
+    private Set<String> indexedAttributes;
 
     public UserAdapter(
         KeycloakSession session,
         RealmModel realm,
         ComponentModel model,
-        UserEntity entity
+        UserEntity entity,
+        UserCacheInvalidator invalidator,
+        LastLoginTracker lastLoginTracker,
+        GroupResolver groupResolver,
+        SqlTracer tracer
     ) {
         super(session, realm, model);
 
         this.entity = entity;
+        this.invalidator = invalidator;
+        this.lastLoginTracker = lastLoginTracker;
+        this.groupResolver = groupResolver;
+        this.tracer = tracer;
         this.keycloakId = StorageId.keycloakId(model, entity.getId());
         this.em = session
             .getProvider(JpaConnectionProvider.class, "user-store")
             .getEntityManager();
 	String ro = model.getConfig().getFirst("readOnly");
         this.readOnly = ro == null || ro.equals("true");
+        this.indexedAttributes = UserStorageTestProvider
+            .getIndexedAttributes(model);
+    }
+
+    /**
+     * Returns the entity attached to the current EntityManager and marks the
+     * user as modified. Adapters created from a cached {@link UserSnapshot}
+     * hold an unmanaged copy, which is replaced by the persistent entity on
+     * the first write.
+     */
+    protected UserEntity getEntityForUpdate() {
+        if (!em.contains(entity)) {
+            TypedQuery<UserEntity> query = em
+                .createNamedQuery("getUserById", UserEntity.class)
+                .setParameter("realm", entity.getRealm())
+                .setParameter("id", entity.getId());
+            List<UserEntity> managed = tracer.trace(
+                "getEntityForUpdate",
+                "getUserById",
+                List.of("realm", "id"),
+                query::getResultList
+            );
+
+            if (managed.isEmpty()) {
+                throw new ModelException(
+                    "User " + entity.getUsername() + " does not exist"
+                );
+            }
+
+            entity = managed.get(0);
+        }
+
+        invalidator.invalidate(session, entity.getId());
+
+        return entity;
+    }
+
+    /**
+     * Returns the later of the stored last login and one recorded on this
+     * node but not yet written, as milliseconds since the epoch.
+     */
+    public String getLastLogin() {
+        Long lastLogin = entity.getLastLogin();
+        Long recorded = lastLoginTracker == null ?
+            null :
+            lastLoginTracker.getLastLogin(entity.getRealm(), entity.getId());
+
+        if (recorded != null && (lastLogin == null || recorded > lastLogin)) {
+            lastLogin = recorded;
+        }
+
+        return lastLogin == null ? null : lastLogin.toString();
+    }
+
+    /**
+     * Replaces the values of an indexed attribute, keeping rows whose value
+     * is unchanged so that rewriting an attribute does not churn the table.
+     * Values stored in federated storage before the attribute was indexed
+     * are removed there.
+     */
+    protected void setIndexedAttribute(String name, List<String> values) {
+        if (super.getAttributeStream(name).findAny().isPresent()) {
+            super.removeAttribute(name);
+        }
+
+        UserEntity managed = getEntityForUpdate();
+        Set<String> remaining = new LinkedHashSet<String>();
+
+        for (String value : values) {
+            if (value != null) {
+                remaining.add(value);
+            }
+        }
+
+        Iterator<UserAttributeEntity> it =
+            getAttributeEntities("setAttribute", managed).iterator();
+
+        while (it.hasNext()) {
+            UserAttributeEntity attribute = it.next();
+
+            if (attribute.getName().equals(name) &&
+                !remaining.remove(attribute.getValue())) {
+                it.remove();
+            }
+        }
+
+        for (String value : remaining) {
+            UserAttributeEntity attribute = new UserAttributeEntity();
+            attribute.setId(UUID.randomUUID().toString());
+            attribute.setRealm(managed.getRealm());
+            attribute.setUser(managed);
+            attribute.setName(name);
+            attribute.setValue(value);
+            managed.getAttributes().add(attribute);
+        }
+    }
+
+    /**
+     * Returns the values of an indexed attribute, or, if the user database
+     * has none, the values stored in federated storage before the attribute
+     * was indexed.
+     */
+    protected Stream<String> getIndexedAttribute(String name) {
+        List<String> values = getAttributeEntities("getAttribute", entity)
+            .stream()
+            .filter(attribute -> attribute.getName().equals(name))
+            .map(UserAttributeEntity::getValue)
+            .collect(Collectors.toList());
+
+        return values.isEmpty() ?
+            super.getAttributeStream(name) :
+            values.stream();
     }
 
     public String getPasswordHash() {
@@ -68,7 +202,7 @@ extends AbstractUserAdapterFederatedStorage
             throw new ReadOnlyException("User is read-only");
         }
 
-        entity.setPasswordHash(password_hash);
+        getEntityForUpdate().setPasswordHash(password_hash);
         em.persist(entity);
     }
 
@@ -83,7 +217,7 @@ extends AbstractUserAdapterFederatedStorage
             throw new ReadOnlyException("User is read-only");
         }
 
-        entity.setUsername(username);
+        getEntityForUpdate().setUsername(username);
     }
 
     @Override
@@ -92,7 +226,7 @@ extends AbstractUserAdapterFederatedStorage
             throw new ReadOnlyException("User is read-only");
         }
 
-        entity.setCreatedTimestamp(createdTimestamp);
+        getEntityForUpdate().setCreatedTimestamp(createdTimestamp);
     }
 
     @Override
@@ -106,7 +240,7 @@ extends AbstractUserAdapterFederatedStorage
             throw new ReadOnlyException("User is read-only");
         }
 
-        entity.setEmail(email);
+        getEntityForUpdate().setEmail(email);
     }
 
     @Override
@@ -121,7 +255,7 @@ extends AbstractUserAdapterFederatedStorage
 
     @Override
     public void setEmailVerified(boolean emailVerified) {
-        entity.setEmailVerified(emailVerified);
+        getEntityForUpdate().setEmailVerified(emailVerified);
     }
 
     @Override
@@ -136,9 +270,16 @@ extends AbstractUserAdapterFederatedStorage
         }
 
         if (name.equals("firstName")) {
-            entity.setFirstName(value);
+            getEntityForUpdate().setFirstName(value);
         } else if (name.equals("lastName")) {
-            entity.setLastName(value);
+            getEntityForUpdate().setLastName(value);
+        } else if (name.equals(LastLoginTracker.ATTRIBUTE)) {
+            logger.debugf("ignoring write to read-only attribute %s", name);
+        } else if (indexedAttributes.contains(name)) {
+            setIndexedAttribute(
+                name,
+                value == null ? List.of() : List.of(value)
+            );
         } else {
             super.setSingleAttribute(name, value);
         }
@@ -151,9 +292,13 @@ extends AbstractUserAdapterFederatedStorage
         }
 
         if (name.equals("firstName")) {
-            entity.setFirstName(null);
+            getEntityForUpdate().setFirstName(null);
         } else if (name.equals("lastName")) {
-            entity.setLastName(null);
+            getEntityForUpdate().setLastName(null);
+        } else if (name.equals(LastLoginTracker.ATTRIBUTE)) {
+            logger.debugf("ignoring write to read-only attribute %s", name);
+        } else if (indexedAttributes.contains(name)) {
+            setIndexedAttribute(name, List.of());
         } else {
             super.removeAttribute(name);
         }
@@ -166,9 +311,13 @@ extends AbstractUserAdapterFederatedStorage
         }
 
         if (name.equals("firstName")) {
-            entity.setFirstName(values.get(0));
+            getEntityForUpdate().setFirstName(values.get(0));
         } else if (name.equals("lastName")) {
-            entity.setLastName(values.get(0));
+            getEntityForUpdate().setLastName(values.get(0));
+        } else if (name.equals(LastLoginTracker.ATTRIBUTE)) {
+            logger.debugf("ignoring write to read-only attribute %s", name);
+        } else if (indexedAttributes.contains(name)) {
+            setIndexedAttribute(name, values == null ? List.of() : values);
         } else {
             super.setAttribute(name, values);
         }
@@ -180,6 +329,10 @@ extends AbstractUserAdapterFederatedStorage
             return entity.getFirstName();
         } if (name.equals("lastName")) {
             return entity.getLastName();
+        } else if (name.equals(LastLoginTracker.ATTRIBUTE)) {
+            return getLastLogin();
+        } else if (indexedAttributes.contains(name)) {
+            return getIndexedAttribute(name).findFirst().orElse(null);
         } else {
             return super.getFirstAttribute(name);
         }
@@ -192,6 +345,24 @@ extends AbstractUserAdapterFederatedStorage
         all.putAll(attrs);
         all.add("firstName", entity.getFirstName());
         all.add("lastName", entity.getLastName());
+
+        String lastLogin = getLastLogin();
+
+        if (lastLogin != null) {
+            all.add(LastLoginTracker.ATTRIBUTE, lastLogin);
+        }
+
+        Set<String> stored = new HashSet<String>();
+
+        for (UserAttributeEntity attribute :
+                getAttributeEntities("getAttributes", entity)) {
+            if (stored.add(attribute.getName())) {
+                all.remove(attribute.getName());
+            }
+
+            all.add(attribute.getName(), attribute.getValue());
+        }
+
         return all;
     }
 
@@ -205,16 +376,235 @@ extends AbstractUserAdapterFederatedStorage
             List<String> lastName = new LinkedList<>();
             lastName.add(entity.getLastName());
             return lastName.stream();
+        } else if (name.equals(LastLoginTracker.ATTRIBUTE)) {
+            String lastLogin = getLastLogin();
+            return lastLogin == null ? Stream.empty() : Stream.of(lastLogin);
+        } else if (indexedAttributes.contains(name)) {
+            return getIndexedAttribute(name);
         } else {
             return super.getAttributeStream(name);
         }
     }
 
+    /**
+     * Grants the role in the user database; read-only components keep
+     * storing grants in Keycloak's federated storage.
+     */
+    @Override
+    public void grantRole(RoleModel role) {
+        if(readOnly) {
+            super.grantRole(role);
+
+            return;
+        }
+
+        UserEntity managed = getEntityForUpdate();
+        RoleMappingWriter writer = RoleMappingWriter.of(session, tracer);
+
+        if (role.isClientRole()) {
+            ClientRoleEntity clientRole = getClientRoleEntity(role, true);
+
+            if (getClientRoles("grantRole", managed).stream()
+                    .noneMatch(r -> r.getId().equals(clientRole.getId()))) {
+                writer.grant(managed, clientRole);
+            }
+        } else {
+            RealmRoleEntity realmRole = getRealmRoleEntity(role, true);
+
+            if (getRealmRoles("grantRole", managed).stream()
+                    .noneMatch(r -> r.getId().equals(realmRole.getId()))) {
+                writer.grant(managed, realmRole);
+            }
+        }
+    }
+
+    /**
+     * Revokes the role in the user database. Mappings that are not found
+     * there are removed from Keycloak's federated storage.
+     */
+    @Override
+    public void deleteRoleMapping(RoleModel role) {
+        if(readOnly) {
+            super.deleteRoleMapping(role);
+
+            return;
+        }
+
+        UserEntity managed = getEntityForUpdate();
+
+        if (role.isClientRole()) {
+            ClientRoleEntity clientRole = getClientRoleEntity(role, false);
+
+            if (clientRole != null &&
+                getClientRoles("deleteRoleMapping", managed).stream()
+                    .anyMatch(r -> r.getId().equals(clientRole.getId()))) {
+                RoleMappingWriter.of(session, tracer)
+                    .revoke(managed, clientRole);
+
+                return;
+            }
+        } else {
+            RealmRoleEntity realmRole = getRealmRoleEntity(role, false);
+
+            if (realmRole != null &&
+                getRealmRoles("deleteRoleMapping", managed).stream()
+                    .anyMatch(r -> r.getId().equals(realmRole.getId()))) {
+                RoleMappingWriter.of(session, tracer)
+                    .revoke(managed, realmRole);
+
+                return;
+            }
+        }
+
+        super.deleteRoleMapping(role);
+    }
+
+    /**
+     * Returns the row of {@code client_roles} matching the client role,
+     * optionally creating it.
+     */
+    protected ClientRoleEntity getClientRoleEntity(RoleModel role, boolean create) {
+        String client = ((ClientModel)role.getContainer()).getClientId();
+        TypedQuery<ClientRoleEntity> query = em
+            .createNamedQuery("getClientRole", ClientRoleEntity.class)
+            .setParameter("realm", entity.getRealm())
+            .setParameter("client", client)
+            .setParameter("role", role.getName());
+        List<ClientRoleEntity> result = tracer.trace(
+            "getClientRoleEntity",
+            "getClientRole",
+            List.of("realm", "client", "role"),
+            query::getResultList
+        );
+
+        if (!result.isEmpty() || !create) {
+            return result.isEmpty() ? null : result.get(0);
+        }
+
+        ClientRoleEntity clientRole = new ClientRoleEntity();
+        clientRole.setId(UUID.randomUUID().toString());
+        clientRole.setRealm(entity.getRealm());
+        clientRole.setClient(client);
+        clientRole.setRole(role.getName());
+        em.persist(clientRole);
+
+        return clientRole;
+    }
+
+    /**
+     * Returns the row of {@code realm_roles} matching the realm role,
+     * optionally creating it.
+     */
+    protected RealmRoleEntity getRealmRoleEntity(RoleModel role, boolean create) {
+        TypedQuery<RealmRoleEntity> query = em
+            .createNamedQuery("getRealmRole", RealmRoleEntity.class)
+            .setParameter("realm", entity.getRealm())
+            .setParameter("role", role.getName());
+        List<RealmRoleEntity> result = tracer.trace(
+            "getRealmRoleEntity",
+            "getRealmRole",
+            List.of("realm", "role"),
+            query::getResultList
+        );
+
+        if (!result.isEmpty() || !create) {
+            return result.isEmpty() ? null : result.get(0);
+        }
+
+        RealmRoleEntity realmRole = new RealmRoleEntity();
+        realmRole.setId(UUID.randomUUID().toString());
+        realmRole.setRealm(entity.getRealm());
+        realmRole.setRole(role.getName());
+        em.persist(realmRole);
+
+        return realmRole;
+    }
+
+    /**
+     * Returns the indexed attributes stored for the user, tracing their
+     * lazy load.
+     */
+    private Set<UserAttributeEntity> getAttributeEntities(
+        String method,
+        UserEntity user
+    ) {
+        return tracer.initialize(
+            method,
+            "UserEntity.attributes",
+            user.getAttributes()
+        );
+    }
+
+    /**
+     * Returns the client roles of the user including the changes pending
+     * in the session, tracing the lazy load of the stored ones.
+     */
+    private Set<ClientRoleEntity> getClientRoles(String method, UserEntity user) {
+        tracer.initialize(
+            method,
+            "UserEntity.clientRoles",
+            user.getClientRoles()
+        );
+
+        return RoleMappingWriter.getClientRoles(session, user);
+    }
+
+    /**
+     * Returns the realm roles of the user including the changes pending
+     * in the session, tracing the lazy load of the stored ones.
+     */
+    private Set<RealmRoleEntity> getRealmRoles(String method, UserEntity user) {
+        tracer.initialize(
+            method,
+            "UserEntity.realmRoles",
+            user.getRealmRoles()
+        );
+
+        return RoleMappingWriter.getRealmRoles(session, user);
+    }
+
+    @Override
+    public Stream<GroupModel> getGroupsStream() {
+        Stream<GroupModel> groups = super.getGroupsStream();
+
+        Set<GroupEntity> groupEntities = tracer.initialize(
+            "getGroupsStream",
+            "UserEntity.groups",
+            entity.getGroups()
+        );
+
+        for (GroupEntity groupEntity : groupEntities) {
+            GroupModel group = groupResolver.resolve(
+                session,
+                realm,
+                groupEntity.getPath()
+            );
+
+            if(group==null) {
+                logger.warnf(
+                    "User %s requests group %s, " +
+                    "but group %s does not exist; " +
+                    "group not assigned.",
+                    entity.getUsername(),
+                    groupEntity.getPath(),
+                    groupEntity.getPath()
+                );
+
+                continue;
+            }
+
+            groups = Stream.concat(groups, Stream.of(group));
+        }
+
+        return groups;
+    }
+
     @Override
     public Stream<RoleModel> getRoleMappingsStream() {
         Stream<RoleModel> roleMappings = super.getRoleMappingsStream();
 
-        for (ClientRoleEntity clientRole : entity.getClientRoles()) {
+        for (ClientRoleEntity clientRole :
+                getClientRoles("getRoleMappingsStream", entity)) {
             ClientModel client = realm.getClientByClientId(clientRole.getClient());
 
             if(client==null) {
@@ -250,7 +640,8 @@ extends AbstractUserAdapterFederatedStorage
             roleMappings = Stream.concat(roleMappings, Stream.of(role));
         }
 
-        for (RealmRoleEntity realmRole : entity.getRealmRoles()) {
+        for (RealmRoleEntity realmRole :
+                getRealmRoles("getRoleMappingsStream", entity)) {
             RoleModel role = realm.getRole(realmRole.getRole());
 
             if(role==null) {
@@ -0,0 +1,298 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import io.micrometer.core.instrument.Counter;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, node-local cache of user snapshots, shared by all sessions of
+ * the provider factory. Entries are looked up by external id, or by
+ * username or email within a realm. They are fresh for a fixed time to
+ * live and are kept as stale entries up to a maximum staleness, so that
+ * they can still be served while the database is slow or unavailable.
+ *
+ * Every eviction advances an epoch counter and is recorded in a small
+ * log of recent invalidations. A loader reads the epoch before querying
+ * the database and passes it to {@link #put}, which drops the snapshot if
+ * that user was invalidated in the meantime, or if too many invalidations
+ * happened to tell; this keeps a slow reader from re-inserting data that a
+ * concurrent write has already invalidated, without discarding the loads
+ * of other users.
+ *
+ * Lookups do not lock. Modifications lock the cache for a constant amount
+ * of work: invalidated ids are left in the insertion order queue and
+ * skipped, and the queue is compacted once it holds more stale entries
+ * than live ones.
+ */
+public class UserCache {
+    private static final int INVALIDATION_LOG_SIZE = 1024;
+    private static final Counter rejectedPuts = UserStorageMetrics
+        .counter("cache.put.rejected");
+    private final Map<String, UserSnapshot> byId =
+        new ConcurrentHashMap<String, UserSnapshot>();
+    private final Map<String, String> byUsername =
+        new ConcurrentHashMap<String, String>();
+    private final Map<String, String> byEmail =
+        new ConcurrentHashMap<String, String>();
+    private final String[] invalidationLog = new String[INVALIDATION_LOG_SIZE];
+    private final AtomicLong epoch = new AtomicLong();
+    private ArrayDeque<String> insertionOrder = new ArrayDeque<String>();
+    private long clearedAt;
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final long maxStaleMillis;
+
+    public UserCache(int maxEntries, long ttlMillis, long maxStaleMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.maxStaleMillis = Math.max(ttlMillis, maxStaleMillis);
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0 && ttlMillis > 0;
+    }
+
+    public long epoch() {
+        return epoch.get();
+    }
+
+    public boolean isFresh(UserSnapshot snapshot) {
+        return System.currentTimeMillis() - snapshot.getLoadedAt() <= ttlMillis;
+    }
+
+    /**
+     * Returns the cached snapshot, which may be stale; see
+     * {@link #isFresh}.
+     */
+    public UserSnapshot getById(String realm, String id) {
+        UserSnapshot snapshot = get(id);
+
+        return snapshot != null && realm.equals(snapshot.getRealm()) ?
+            snapshot :
+            null;
+    }
+
+    public UserSnapshot getByUsername(String realm, String username) {
+        String id = byUsername.get(key(realm, username));
+
+        return id == null ? null : getById(realm, id);
+    }
+
+    public UserSnapshot getByEmail(String realm, String email) {
+        String id = byEmail.get(key(realm, email));
+
+        return id == null ? null : getById(realm, id);
+    }
+
+    private UserSnapshot get(String id) {
+        UserSnapshot snapshot = byId.get(id);
+
+        if (snapshot == null) {
+            return null;
+        }
+
+        if (System.currentTimeMillis() - snapshot.getLoadedAt() >
+            maxStaleMillis) {
+            remove(snapshot);
+
+            return null;
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Caches a snapshot unless the user has been invalidated since
+     * {@code loadEpoch} was read.
+     */
+    public void put(UserSnapshot snapshot, long loadEpoch) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        synchronized (this) {
+            if (!isUnchangedSince(snapshot.getId(), loadEpoch)) {
+                rejectedPuts.increment();
+
+                return;
+            }
+
+            UserSnapshot previous = byId.put(snapshot.getId(), snapshot);
+
+            if (previous != null) {
+                removeIndexes(previous);
+            } else {
+                insertionOrder.add(snapshot.getId());
+            }
+
+            if (snapshot.getUsername() != null) {
+                byUsername.put(
+                    key(snapshot.getRealm(), snapshot.getUsername()),
+                    snapshot.getId()
+                );
+            }
+
+            if (snapshot.getEmail() != null) {
+                byEmail.put(
+                    key(snapshot.getRealm(), snapshot.getEmail()),
+                    snapshot.getId()
+                );
+            }
+
+            while (byId.size() > maxEntries) {
+                String eldest = insertionOrder.poll();
+
+                if (eldest == null) {
+                    break;
+                }
+
+                UserSnapshot evicted = byId.remove(eldest);
+
+                if (evicted != null) {
+                    removeIndexes(evicted);
+                }
+            }
+
+            if (insertionOrder.size() > 2 * byId.size() + 64) {
+                compactInsertionOrder();
+            }
+        }
+    }
+
+    public void invalidate(String id) {
+        synchronized (this) {
+            evict(id);
+        }
+    }
+
+    public void invalidateAll(Collection<String> ids) {
+        synchronized (this) {
+            for (String id : ids) {
+                evict(id);
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (this) {
+            clearedAt = epoch.incrementAndGet();
+            byId.clear();
+            byUsername.clear();
+            byEmail.clear();
+            insertionOrder.clear();
+        }
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    private void remove(UserSnapshot snapshot) {
+        synchronized (this) {
+            if (byId.remove(snapshot.getId(), snapshot)) {
+                removeIndexes(snapshot);
+            }
+        }
+    }
+
+    /**
+     * Removes the user and records the invalidation; the caller holds the
+     * lock.
+     */
+    private void evict(String id) {
+        long current = epoch.incrementAndGet();
+        invalidationLog[(int)(current % INVALIDATION_LOG_SIZE)] = id;
+        UserSnapshot snapshot = byId.remove(id);
+
+        if (snapshot != null) {
+            removeIndexes(snapshot);
+        }
+    }
+
+    /**
+     * Returns true if the user has not been invalidated since
+     * {@code loadEpoch}; the caller holds the lock.
+     */
+    private boolean isUnchangedSince(String id, long loadEpoch) {
+        long current = epoch.get();
+
+        if (current == loadEpoch) {
+            return true;
+        }
+
+        if (loadEpoch < clearedAt ||
+            current - loadEpoch > INVALIDATION_LOG_SIZE) {
+            return false;
+        }
+
+        for (long e = loadEpoch + 1; e <= current; e++) {
+            if (id.equals(invalidationLog[(int)(e % INVALIDATION_LOG_SIZE)])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Drops the ids of removed users, and all but the latest insertion of
+     * re-inserted ones, from the insertion order; the caller holds the
+     * lock.
+     */
+    private void compactInsertionOrder() {
+        Set<String> seen = new HashSet<String>();
+        ArrayDeque<String> compacted = new ArrayDeque<String>(byId.size());
+        Iterator<String> it = insertionOrder.descendingIterator();
+
+        while (it.hasNext()) {
+            String id = it.next();
+
+            if (byId.containsKey(id) && seen.add(id)) {
+                compacted.addFirst(id);
+            }
+        }
+
+        insertionOrder = compacted;
+    }
+
+    private void removeIndexes(UserSnapshot snapshot) {
+        if (snapshot.getUsername() != null) {
+            byUsername.remove(
+                key(snapshot.getRealm(), snapshot.getUsername()),
+                snapshot.getId()
+            );
+        }
+
+        if (snapshot.getEmail() != null) {
+            byEmail.remove(
+                key(snapshot.getRealm(), snapshot.getEmail()),
+                snapshot.getId()
+            );
+        }
+    }
+
+    private static String key(String realm, String value) {
+        return realm + '\0' + value;
+    }
+}
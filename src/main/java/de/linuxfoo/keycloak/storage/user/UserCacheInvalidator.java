@@ -0,0 +1,179 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.jboss.logging.Logger;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Keeps the {@link UserCache}s and {@link SearchResultCache}s of all nodes
+ * consistent with writes made through this provider.
+ *
+ * A write evicts the user from the local cache at once and remembers its
+ * id in the session. When the Keycloak transaction completes, the id is
+ * evicted locally again and queued for the other nodes; the queue is
+ * drained periodically, so a burst of writes results in a few events
+ * carrying many ids each instead of one event per write. Every eviction
+ * also drops the cached search result pages.
+ */
+public class UserCacheInvalidator {
+    private static final Logger logger = Logger
+        .getLogger(UserCacheInvalidator.class);
+    private static final String PENDING_IDS =
+        UserCacheInvalidator.class.getName() + ".pendingIds";
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Set<String> outgoing = ConcurrentHashMap.newKeySet();
+    private final UserCache cache;
+    private final SearchResultCache searchCache;
+    private final InvalidationChannel channel;
+    private final int batchSize;
+    private final ScheduledExecutorService executor;
+
+    public UserCacheInvalidator(
+        UserCache cache,
+        SearchResultCache searchCache,
+        InvalidationChannel channel,
+        long batchIntervalMillis,
+        int batchSize
+    ) {
+        this.cache = cache;
+        this.searchCache = searchCache;
+        this.channel = channel;
+        this.batchSize = batchSize;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(
+                r,
+                UserStorageTestProviderFactory.PROVIDER_ID + "-invalidation"
+            );
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        channel.subscribe(this::onEvent);
+        executor.scheduleWithFixedDelay(
+            this::flush,
+            batchIntervalMillis,
+            batchIntervalMillis,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Records that the user with the given external id has been modified
+     * in the current transaction of {@code session}.
+     */
+    public void invalidate(KeycloakSession session, String id) {
+        cache.invalidate(id);
+        searchCache.invalidate();
+
+        Set<String> pending = getPendingIds(session);
+
+        if (pending == null) {
+            final Set<String> ids = new HashSet<String>();
+            session.setAttribute(PENDING_IDS, ids);
+            session.getTransactionManager().enlistAfterCompletion(
+                new AbstractKeycloakTransaction() {
+                    @Override
+                    protected void commitImpl() {
+                        session.removeAttribute(PENDING_IDS);
+                        cache.invalidateAll(ids);
+                        searchCache.invalidate();
+                        outgoing.addAll(ids);
+                    }
+
+                    @Override
+                    protected void rollbackImpl() {
+                        session.removeAttribute(PENDING_IDS);
+                        cache.invalidateAll(ids);
+                        searchCache.invalidate();
+                    }
+                }
+            );
+            pending = ids;
+        }
+
+        pending.add(id);
+    }
+
+    /**
+     * Returns true if the session has uncommitted writes; lookups made by
+     * such a session must not populate the shared cache.
+     */
+    public boolean hasPendingWrites(KeycloakSession session) {
+        Set<String> pending = getPendingIds(session);
+
+        return pending != null && !pending.isEmpty();
+    }
+
+    public void flush() {
+        List<String> batch = new ArrayList<String>(batchSize);
+        Iterator<String> it = outgoing.iterator();
+
+        while (it.hasNext()) {
+            batch.add(it.next());
+            it.remove();
+
+            if (batch.size() >= batchSize || !it.hasNext()) {
+                publish(batch);
+                batch = new ArrayList<String>(batchSize);
+            }
+        }
+    }
+
+    public void close() {
+        executor.shutdown();
+        flush();
+    }
+
+    private void publish(List<String> ids) {
+        try {
+            channel.publish(new UserInvalidationEvent(nodeId, ids));
+        } catch (RuntimeException e) {
+            logger.warnf(
+                e,
+                "could not publish invalidation of %d users",
+                ids.size()
+            );
+        }
+    }
+
+    private void onEvent(UserInvalidationEvent event) {
+        if (nodeId.equals(event.getOrigin())) {
+            return;
+        }
+
+        logger.debugf("received %s", event);
+
+        cache.invalidateAll(event.getIds());
+        searchCache.invalidate();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String> getPendingIds(KeycloakSession session) {
+        return (Set<String>)session.getAttribute(PENDING_IDS);
+    }
+}
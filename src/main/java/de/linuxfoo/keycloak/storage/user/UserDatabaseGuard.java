@@ -0,0 +1,188 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import jakarta.persistence.TypedQuery;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Protects Keycloak from a slow or failing user database.
+ *
+ * Queries run with a timeout and through a {@link CircuitBreaker}; while
+ * the breaker is open, calls fail immediately instead of waiting for JDBC
+ * timeouts. Cached users past their time to live, but within the staleness
+ * bound of the {@link UserCache}, are served as they are and refreshed in
+ * the background.
+ */
+public class UserDatabaseGuard {
+    public static final String QUERY_TIMEOUT_HINT =
+        "jakarta.persistence.query.timeout";
+    private static final Logger logger = Logger
+        .getLogger(UserDatabaseGuard.class);
+    private final UserCache cache;
+    private final CircuitBreaker breaker;
+    private final Map<String, Object> queryHints;
+    private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+    private final ThreadPoolExecutor executor;
+
+    public UserDatabaseGuard(
+        UserCache cache,
+        long queryTimeoutMillis,
+        CircuitBreaker breaker,
+        int revalidationThreads
+    ) {
+        this.cache = cache;
+        this.breaker = breaker;
+        this.queryHints = queryTimeoutMillis > 0 ?
+            Collections.singletonMap(
+                QUERY_TIMEOUT_HINT,
+                (Object)Long.valueOf(queryTimeoutMillis)
+            ) :
+            Collections.<String, Object>emptyMap();
+        this.executor = new ThreadPoolExecutor(
+            revalidationThreads,
+            revalidationThreads,
+            60L,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(1000),
+            r -> {
+                Thread thread = new Thread(
+                    r,
+                    UserStorageTestProviderFactory.PROVIDER_ID +
+                        "-revalidation"
+                );
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    public Map<String, Object> getQueryHints() {
+        return queryHints;
+    }
+
+    public <T extends Query> T withTimeout(T query) {
+        for (Map.Entry<String, Object> hint : queryHints.entrySet()) {
+            query.setHint(hint.getKey(), hint.getValue());
+        }
+
+        return query;
+    }
+
+    /**
+     * Runs a database call through the circuit breaker.
+     *
+     * @throws ModelException if the breaker is open
+     */
+    public <T> T call(Supplier<T> query) {
+        CircuitBreaker.Permit permit = breaker.tryAcquire();
+
+        if (permit == null) {
+            throw new ModelException("User database is unavailable");
+        }
+
+        long start = System.currentTimeMillis();
+        boolean success = false;
+
+        try {
+            T result = query.get();
+            success = true;
+
+            return result;
+        } finally {
+            breaker.record(permit, success, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Refreshes a stale cache entry in the background. At most one refresh
+     * per user is in flight; none is started while the breaker is open.
+     */
+    public void revalidate(
+        KeycloakSessionFactory factory,
+        SqlTracer tracer,
+        String realm,
+        String id
+    ) {
+        if (breaker.getState() == CircuitBreaker.State.OPEN ||
+            !revalidating.add(id)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    KeycloakModelUtils.runJobInTransaction(factory, session -> {
+                        EntityManager em = session
+                            .getProvider(JpaConnectionProvider.class, "user-store")
+                            .getEntityManager();
+                        long epoch = cache.epoch();
+                        TypedQuery<UserEntity> query = withTimeout(em
+                            .createNamedQuery("getUserById", UserEntity.class)
+                            .setParameter("realm", realm)
+                            .setParameter("id", id));
+                        List<UserEntity> result = call(() -> tracer.trace(
+                            "revalidate",
+                            "getUserById",
+                            List.of("realm", "id"),
+                            query::getResultList
+                        ));
+
+                        if (result.isEmpty()) {
+                            cache.invalidate(id);
+                        } else {
+                            cache.put(
+                                UserSnapshot.of(result.get(0), tracer, "revalidate"),
+                                epoch
+                            );
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    logger.debugf(e, "could not revalidate user %s", id);
+                } finally {
+                    revalidating.remove(id);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            revalidating.remove(id);
+        }
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,270 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jboss.logging.Logger;
+
+/**
+ * Writes the whole user directory to a stream as NDJSON (one JSON object
+ * per line) or CSV, in constant memory.
+ *
+ * Users are read in chunks ordered by id, each chunk starting after the
+ * last id of the previous one (keyset pagination), so that every chunk is
+ * an index range scan regardless of how far the export has progressed.
+ * Role mappings are fetched with one query per chunk and table, and the
+ * persistence context is cleared after each chunk. Password hashes are
+ * never exported.
+ */
+public class UserDirectoryExporter {
+    public enum Format { NDJSON, CSV }
+
+    private static final Logger logger = Logger
+        .getLogger(UserDirectoryExporter.class);
+    private static final String[] CSV_HEADER = {
+        "id", "username", "email", "emailVerified", "firstName", "lastName",
+        "createdTimestamp", "lastLogin", "clientRoles", "realmRoles"
+    };
+    private final int chunkSize;
+    private final SqlTracer tracer;
+
+    public UserDirectoryExporter(int chunkSize, SqlTracer tracer) {
+        this.chunkSize = Math.max(1, chunkSize);
+        this.tracer = tracer;
+    }
+
+    /**
+     * Exports all users of the tenant and returns the number of exported
+     * rows.
+     */
+    public long export(
+        EntityManager em,
+        String tenant,
+        OutputStream out,
+        Format format
+    ) throws IOException {
+        long start = System.currentTimeMillis();
+        long rows = 0;
+        String after = "";
+        Writer writer = new BufferedWriter(
+            new OutputStreamWriter(out, StandardCharsets.UTF_8)
+        );
+        JsonGenerator json = format == Format.NDJSON ?
+            new JsonFactory().createGenerator(writer) :
+            null;
+
+        if (json != null) {
+            json.setRootValueSeparator(null);
+            json.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+        } else {
+            writeCsvRow(writer, CSV_HEADER);
+        }
+
+        while (true) {
+            TypedQuery<UserEntity> query = em
+                .createNamedQuery("getUsersAfter", UserEntity.class)
+                .setParameter("realm", tenant)
+                .setParameter("after", after)
+                .setHint("org.hibernate.fetchSize", chunkSize)
+                .setHint("org.hibernate.readOnly", true)
+                .setMaxResults(chunkSize);
+            List<UserEntity> users = tracer.trace(
+                "export",
+                "getUsersAfter",
+                List.of("realm", "after"),
+                query::getResultList
+            );
+
+            if (users.isEmpty()) {
+                break;
+            }
+
+            List<String> ids = new ArrayList<String>(users.size());
+
+            for (UserEntity user : users) {
+                ids.add(user.getId());
+            }
+
+            Map<String, List<String>> clientRoles =
+                loadRoles(em, "getClientRoleNamesOfUsers", tenant, ids);
+            Map<String, List<String>> realmRoles =
+                loadRoles(em, "getRealmRoleNamesOfUsers", tenant, ids);
+
+            for (UserEntity user : users) {
+                List<String> c = clientRoles.getOrDefault(user.getId(), List.of());
+                List<String> r = realmRoles.getOrDefault(user.getId(), List.of());
+
+                if (json != null) {
+                    writeJson(json, user, c, r);
+                    json.flush();
+                    writer.write('\n');
+                } else {
+                    writeCsv(writer, user, c, r);
+                }
+            }
+
+            rows += users.size();
+            after = users.get(users.size() - 1).getId();
+            em.clear();
+
+            logger.debugf("exported %d users", rows);
+        }
+
+        writer.flush();
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        logger.infof(
+            "exported %d users in %d ms (%d rows/s)",
+            rows,
+            elapsed,
+            rows * 1000 / elapsed
+        );
+
+        return rows;
+    }
+
+    private Map<String, List<String>> loadRoles(
+        EntityManager em,
+        String queryName,
+        String tenant,
+        List<String> ids
+    ) {
+        Map<String, List<String>> roles = new HashMap<String, List<String>>();
+        TypedQuery<Object[]> query = em
+            .createNamedQuery(queryName, Object[].class)
+            .setParameter("realm", tenant)
+            .setParameter("ids", ids);
+        List<Object[]> rows = tracer.trace(
+            "export",
+            queryName,
+            List.of("realm", "ids"),
+            query::getResultList
+        );
+
+        for (Object[] row : rows) {
+            roles.computeIfAbsent((String)row[0], id -> new ArrayList<String>())
+                .add((String)row[1]);
+        }
+
+        return roles;
+    }
+
+    private void writeJson(
+        JsonGenerator json,
+        UserEntity user,
+        List<String> clientRoles,
+        List<String> realmRoles
+    ) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("id", user.getId());
+        json.writeStringField("username", user.getUsername());
+        json.writeStringField("email", user.getEmail());
+        json.writeBooleanField("emailVerified", user.getEmailVerified());
+        json.writeStringField("firstName", user.getFirstName());
+        json.writeStringField("lastName", user.getLastName());
+        writeNumberField(json, "createdTimestamp", user.getCreatedTimestamp());
+        writeNumberField(json, "lastLogin", user.getLastLogin());
+        writeArrayField(json, "clientRoles", clientRoles);
+        writeArrayField(json, "realmRoles", realmRoles);
+        json.writeEndObject();
+    }
+
+    private void writeNumberField(JsonGenerator json, String name, Long value)
+    throws IOException {
+        if (value == null) {
+            json.writeNullField(name);
+        } else {
+            json.writeNumberField(name, value);
+        }
+    }
+
+    private void writeArrayField(
+        JsonGenerator json,
+        String name,
+        List<String> values
+    ) throws IOException {
+        json.writeArrayFieldStart(name);
+
+        for (String value : values) {
+            json.writeString(value);
+        }
+
+        json.writeEndArray();
+    }
+
+    private void writeCsv(
+        Writer writer,
+        UserEntity user,
+        List<String> clientRoles,
+        List<String> realmRoles
+    ) throws IOException {
+        writeCsvRow(writer, new String[] {
+            user.getId(),
+            user.getUsername(),
+            user.getEmail(),
+            String.valueOf(user.getEmailVerified()),
+            user.getFirstName(),
+            user.getLastName(),
+            toString(user.getCreatedTimestamp()),
+            toString(user.getLastLogin()),
+            String.join(" ", clientRoles),
+            String.join(" ", realmRoles)
+        });
+    }
+
+    private void writeCsvRow(Writer writer, String[] values)
+    throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+
+            String value = values[i];
+
+            if (value == null) {
+                continue;
+            }
+
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 ||
+                value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+                writer.write('"');
+                writer.write(value.replace("\"", "\"\""));
+                writer.write('"');
+            } else {
+                writer.write(value);
+            }
+        }
+
+        writer.write("\r\n");
+    }
+
+    private static String toString(Long value) {
+        return value == null ? null : value.toString();
+    }
+}
@@ -15,6 +15,8 @@
 
 package de.linuxfoo.keycloak.storage.user;
 
+import jakarta.persistence.CascadeType;
+import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
 import jakarta.persistence.JoinColumn;
@@ -22,32 +24,83 @@ import jakarta.persistence.JoinTable;
 import jakarta.persistence.ManyToMany;
 import jakarta.persistence.NamedQueries;
 import jakarta.persistence.NamedQuery;
+import jakarta.persistence.OneToMany;
 import jakarta.persistence.Table;
 import java.util.HashSet;
 import java.util.Set;
 
 @NamedQueries({
+    @NamedQuery(
+        name="getUserById",
+        query="select u from UserEntity u " +
+              "where u.realm = :realm and u.id = :id"
+    ),
     @NamedQuery(
         name="getUserByUsername",
-        query="select u from UserEntity u where u.username = :username"
+        query="select u from UserEntity u " +
+              "where u.realm = :realm and u.username = :username"
     ),
     @NamedQuery(
         name="getUserByEmail",
-        query="select u from UserEntity u where u.email = :email"
+        query="select u from UserEntity u " +
+              "where u.realm = :realm and u.email = :email"
     ),
     @NamedQuery(
         name="getUserCount",
-        query="select count(u) from UserEntity u"
+        query="select count(u) from UserEntity u where u.realm = :realm"
     ),
     @NamedQuery(
         name="getAllUsers",
-        query="select u from UserEntity u"
+        query="select u from UserEntity u where u.realm = :realm"
+    ),
+    @NamedQuery(
+        name="getRecentlyActiveUserIds",
+        query="select u.id from UserEntity u where u.realm in :realms " +
+              "order by u.last_login desc nulls last, " +
+              "u.createdTimestamp desc nulls last"
+    ),
+    @NamedQuery(
+        name="getUsersWithRoles",
+        query="select distinct u from UserEntity u " +
+              "left join fetch u.clientRoles " +
+              "left join fetch u.realmRoles " +
+              "where u.realm in :realms and u.id in :ids"
+    ),
+    @NamedQuery(
+        name="getUsersAfter",
+        query="select u from UserEntity u " +
+              "where u.realm = :realm and u.id > :after order by u.id"
+    ),
+    @NamedQuery(
+        name="getGroupMembersAfter",
+        query="select u from UserEntity u join u.groups g " +
+              "where u.realm = :realm and g.realm = :realm and " +
+              "g.path = :path and u.id > :after order by u.id"
+    ),
+    @NamedQuery(
+        name="getClientRoleNamesOfUsers",
+        query="select u.id, concat(r.client, '.', r.role) " +
+              "from UserEntity u join u.clientRoles r " +
+              "where u.realm = :realm and u.id in :ids"
+    ),
+    @NamedQuery(
+        name="getRealmRoleNamesOfUsers",
+        query="select u.id, r.role " +
+              "from UserEntity u join u.realmRoles r " +
+              "where u.realm = :realm and u.id in :ids"
     ),
     @NamedQuery(
         name="searchForUser",
-        query="select u from UserEntity u where " +
+        query="select u from UserEntity u where u.realm = :realm and " +
               "( lower(u.username) like :search or u.email like :search ) " +
               "order by u.username"
+    ),
+    @NamedQuery(
+        name="searchForUserByAttribute",
+        query="select u from UserEntity u join u.attributes a " +
+              "where u.realm = :realm and a.realm = :realm and " +
+              "a.name = :name and a.value = :value " +
+              "order by u.username"
     )
 })
 
@@ -56,6 +109,7 @@ import java.util.Set;
 public class UserEntity {
     @Id
     private String id;
+    private String realm;
     private String username;
     private String email;
     private boolean email_verified;
@@ -63,6 +117,8 @@ public class UserEntity {
     private String firstName;
     private String lastName;
     private Long createdTimestamp;
+    @Column(name = "last_login", insertable = false, updatable = false)
+    private Long last_login;
     @ManyToMany
     @JoinTable(name = "users_to_client_roles",
         joinColumns = { @JoinColumn(name = "user_id") },
@@ -73,6 +129,18 @@ public class UserEntity {
         joinColumns = { @JoinColumn(name = "user_id") },
         inverseJoinColumns = { @JoinColumn(name = "realm_role_id") })
     private Set<RealmRoleEntity> realmRoles = new HashSet<RealmRoleEntity>();
+    @ManyToMany
+    @JoinTable(name = "users_to_groups",
+        joinColumns = { @JoinColumn(name = "user_id") },
+        inverseJoinColumns = { @JoinColumn(name = "group_id") })
+    private Set<GroupEntity> groups = new HashSet<GroupEntity>();
+    @OneToMany(
+        mappedBy = "user",
+        cascade = CascadeType.ALL,
+        orphanRemoval = true
+    )
+    private Set<UserAttributeEntity> attributes =
+        new HashSet<UserAttributeEntity>();
 
     public String getId() {
         return id;
@@ -82,6 +150,14 @@ public class UserEntity {
         this.id = id;
     }
 
+    public String getRealm() {
+        return realm;
+    }
+
+    public void setRealm(String realm) {
+        this.realm = realm;
+    }
+
     public String getUsername() {
         return username;
     }
@@ -138,6 +214,14 @@ public class UserEntity {
         this.createdTimestamp = createdTimestamp;
     }
 
+    public Long getLastLogin() {
+        return last_login;
+    }
+
+    public void setLastLogin(Long lastLogin) {
+        this.last_login = lastLogin;
+    }
+
     public Set<ClientRoleEntity> getClientRoles() {
         return clientRoles;
     }
@@ -153,4 +237,20 @@ public class UserEntity {
     public void setRealmRoles(Set<RealmRoleEntity> realmRoles) {
         this.realmRoles = realmRoles;
     }
+
+    public Set<GroupEntity> getGroups() {
+        return groups;
+    }
+
+    public void setGroups(Set<GroupEntity> groups) {
+        this.groups = groups;
+    }
+
+    public Set<UserAttributeEntity> getAttributes() {
+        return attributes;
+    }
+
+    public void setAttributes(Set<UserAttributeEntity> attributes) {
+        this.attributes = attributes;
+    }
 }
@@ -0,0 +1,184 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import org.keycloak.Config;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.permissions.AdminPermissions;
+import org.keycloak.storage.UserStorageProvider;
+
+/**
+ * REST endpoints below {@code /realms/{realm}/user-storage-test}:
+ * {@code export} streams the realm's part of the external user directory
+ * as NDJSON or CSV, and needs a bearer token of the realm that grants
+ * permission to view users; {@code snapshot} starts a rebuild of this
+ * node's directory snapshot, which reads the users of all realms, and
+ * needs a bearer token of a server administrator, i.e. a user with the
+ * {@code admin} role of the master realm.
+ */
+public class UserExportResourceProvider implements RealmResourceProvider {
+    private final KeycloakSession session;
+    private final int chunkSize;
+
+    public UserExportResourceProvider(KeycloakSession session, int chunkSize) {
+        this.session = session;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    @GET
+    @Path("export")
+    public Response export(
+        @QueryParam("format") String format,
+        @QueryParam("tenant") String tenant
+    ) {
+        RealmModel realm = session.getContext().getRealm();
+        getPermissions(realm).users().requireView();
+
+        ComponentModel component = UserStorageTestProviderFactory
+            .getComponents(realm)
+            .filter(c -> tenant == null ||
+                tenant.equals(UserStorageTestProvider.getTenant(realm, c)))
+            .findFirst()
+            .orElseThrow(() ->
+                new NotFoundException("No user storage for this realm"));
+        String exportTenant = UserStorageTestProvider.getTenant(realm, component);
+        UserDirectoryExporter.Format exportFormat =
+            "csv".equalsIgnoreCase(format) ?
+                UserDirectoryExporter.Format.CSV :
+                UserDirectoryExporter.Format.NDJSON;
+        UserDirectoryExporter exporter = new UserDirectoryExporter(
+            chunkSize,
+            new SqlTracer(component)
+        );
+        KeycloakSessionFactory factory = session.getKeycloakSessionFactory();
+
+        // The export runs in its own session and transaction, because the
+        // response body is written after the request's session has ended.
+        StreamingOutput body = out ->
+            KeycloakModelUtils.runJobInTransaction(factory, exportSession -> {
+                try {
+                    exporter.export(
+                        exportSession
+                            .getProvider(JpaConnectionProvider.class, "user-store")
+                            .getEntityManager(),
+                        exportTenant,
+                        out,
+                        exportFormat
+                    );
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+        return Response.ok(body)
+            .type(exportFormat == UserDirectoryExporter.Format.CSV ?
+                "text/csv; charset=utf-8" :
+                "application/x-ndjson")
+            .header(
+                "Content-Disposition",
+                "attachment; filename=\"users." +
+                    exportFormat.name().toLowerCase() + "\""
+            )
+            .build();
+    }
+
+    @POST
+    @Path("snapshot")
+    public Response rebuildSnapshot() {
+        requireServerAdmin(session.getContext().getRealm());
+
+        UserStorageTestProviderFactory factory =
+            (UserStorageTestProviderFactory)session
+                .getKeycloakSessionFactory()
+                .getProviderFactory(
+                    UserStorageProvider.class,
+                    UserStorageTestProviderFactory.PROVIDER_ID
+                );
+        DirectorySnapshotManager snapshots = factory.getSnapshots();
+
+        if (snapshots == null) {
+            throw new NotFoundException("Directory snapshots are disabled");
+        }
+
+        snapshots.requestRebuild();
+
+        return Response.accepted().build();
+    }
+
+    private AdminPermissionEvaluator getPermissions(RealmModel realm) {
+        AuthenticationManager.AuthResult auth = authenticate();
+
+        return AdminPermissions.evaluator(
+            session,
+            realm,
+            new AdminAuth(realm, auth.getToken(), auth.getUser(), auth.getClient())
+        );
+    }
+
+    private void requireServerAdmin(RealmModel realm) {
+        AuthenticationManager.AuthResult auth = authenticate();
+        RoleModel admin = realm.getRole(AdminRoles.ADMIN);
+
+        if (!Config.getAdminRealm().equals(realm.getName()) ||
+            admin == null ||
+            !auth.getUser().hasRole(admin)) {
+            throw new ForbiddenException("Requires the server admin role");
+        }
+    }
+
+    private AuthenticationManager.AuthResult authenticate() {
+        AuthenticationManager.AuthResult auth =
+            new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+
+        return auth;
+    }
+
+    @Override
+    public void close() {
+    }
+}
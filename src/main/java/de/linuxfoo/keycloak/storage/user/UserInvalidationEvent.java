@@ -0,0 +1,52 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import org.keycloak.cluster.ClusterEvent;
+
+/**
+ * Cluster message listing the external ids of users that have been
+ * written on the sending node. Ids are batched by
+ * {@link UserCacheInvalidator} to keep the number of messages low.
+ */
+public class UserInvalidationEvent implements ClusterEvent, Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String origin;
+    private final String[] ids;
+
+    public UserInvalidationEvent(String origin, Collection<String> ids) {
+        this.origin = origin;
+        this.ids = ids.toArray(new String[0]);
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    public List<String> getIds() {
+        return Arrays.asList(ids);
+    }
+
+    @Override
+    public String toString() {
+        return "UserInvalidationEvent [origin=" + origin +
+            ", ids=" + ids.length + "]";
+    }
+}
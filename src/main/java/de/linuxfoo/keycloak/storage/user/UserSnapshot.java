@@ -0,0 +1,152 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Immutable copy of a user row, its role and group mappings and its
+ * indexed attributes, detached from any EntityManager so that it can be
+ * shared between sessions and threads.
+ */
+public class UserSnapshot {
+    private final UserEntity entity;
+    private final long loadedAt;
+
+    private UserSnapshot(UserEntity entity, long loadedAt) {
+        this.entity = entity;
+        this.loadedAt = loadedAt;
+    }
+
+    public static UserSnapshot of(UserEntity entity) {
+        return new UserSnapshot(copy(entity), System.currentTimeMillis());
+    }
+
+    /**
+     * Returns a snapshot of a managed entity, loading the collections it
+     * copies through the tracer.
+     */
+    public static UserSnapshot of(
+        UserEntity entity,
+        SqlTracer tracer,
+        String method
+    ) {
+        tracer.initialize(method, "UserEntity.clientRoles", entity.getClientRoles());
+        tracer.initialize(method, "UserEntity.realmRoles", entity.getRealmRoles());
+        tracer.initialize(method, "UserEntity.groups", entity.getGroups());
+        tracer.initialize(method, "UserEntity.attributes", entity.getAttributes());
+
+        return of(entity);
+    }
+
+    public String getId() {
+        return entity.getId();
+    }
+
+    public String getRealm() {
+        return entity.getRealm();
+    }
+
+    public String getUsername() {
+        return entity.getUsername();
+    }
+
+    public String getEmail() {
+        return entity.getEmail();
+    }
+
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+
+    /**
+     * Returns a new, unmanaged entity carrying the snapshot values. The
+     * returned entity must not be passed to an EntityManager; see
+     * {@link UserAdapter#getEntityForUpdate()}.
+     */
+    public UserEntity toEntity() {
+        return copy(entity);
+    }
+
+    private static UserEntity copy(UserEntity source) {
+        UserEntity target = new UserEntity();
+        target.setId(source.getId());
+        target.setRealm(source.getRealm());
+        target.setUsername(source.getUsername());
+        target.setEmail(source.getEmail());
+        target.setEmailVerified(source.getEmailVerified());
+        target.setPasswordHash(source.getPasswordHash());
+        target.setFirstName(source.getFirstName());
+        target.setLastName(source.getLastName());
+        target.setCreatedTimestamp(source.getCreatedTimestamp());
+        target.setLastLogin(source.getLastLogin());
+
+        Set<ClientRoleEntity> clientRoles = new HashSet<ClientRoleEntity>();
+
+        for (ClientRoleEntity role : source.getClientRoles()) {
+            ClientRoleEntity copy = new ClientRoleEntity();
+            copy.setId(role.getId());
+            copy.setRealm(role.getRealm());
+            copy.setClient(role.getClient());
+            copy.setRole(role.getRole());
+            clientRoles.add(copy);
+        }
+
+        target.setClientRoles(clientRoles);
+
+        Set<RealmRoleEntity> realmRoles = new HashSet<RealmRoleEntity>();
+
+        for (RealmRoleEntity role : source.getRealmRoles()) {
+            RealmRoleEntity copy = new RealmRoleEntity();
+            copy.setId(role.getId());
+            copy.setRealm(role.getRealm());
+            copy.setRole(role.getRole());
+            realmRoles.add(copy);
+        }
+
+        target.setRealmRoles(realmRoles);
+
+        Set<GroupEntity> groups = new HashSet<GroupEntity>();
+
+        for (GroupEntity group : source.getGroups()) {
+            GroupEntity copy = new GroupEntity();
+            copy.setId(group.getId());
+            copy.setRealm(group.getRealm());
+            copy.setPath(group.getPath());
+            groups.add(copy);
+        }
+
+        target.setGroups(groups);
+
+        Set<UserAttributeEntity> attributes =
+            new HashSet<UserAttributeEntity>();
+
+        for (UserAttributeEntity attribute : source.getAttributes()) {
+            UserAttributeEntity copy = new UserAttributeEntity();
+            copy.setId(attribute.getId());
+            copy.setRealm(attribute.getRealm());
+            copy.setUser(target);
+            copy.setName(attribute.getName());
+            copy.setValue(attribute.getValue());
+            attributes.add(copy);
+        }
+
+        target.setAttributes(attributes);
+
+        return target;
+    }
+}
@@ -0,0 +1,40 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import java.util.function.Supplier;
+
+/**
+ * Registers the provider's meters in Micrometer's global registry, which
+ * Keycloak exposes on its metrics endpoint when metrics are enabled.
+ */
+public class UserStorageMetrics {
+    private static final String PREFIX = "user.storage.test.";
+
+    private UserStorageMetrics() {
+    }
+
+    public static Counter counter(String name, String... tags) {
+        return Metrics.counter(PREFIX + name, tags);
+    }
+
+    public static void gauge(String name, Supplier<Number> value) {
+        Gauge.builder(PREFIX + name, value).register(Metrics.globalRegistry);
+    }
+}
@@ -15,12 +15,19 @@
 
 package de.linuxfoo.keycloak.storage.user;
 
+import io.micrometer.core.instrument.Counter;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
 import jakarta.persistence.TypedQuery;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.UUID;
 import org.apache.commons.codec.digest.Crypt;
@@ -35,10 +42,12 @@ import org.keycloak.models.cache.OnUserCache;
 import org.keycloak.models.credential.PasswordCredentialModel;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.RoleModel;
 import org.keycloak.models.UserCredentialModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.storage.ReadOnlyException;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.UserStorageProvider;
@@ -61,17 +70,47 @@ implements
     public static final String PASSWORD_HASH_CACHE_KEY = UserAdapter
         .class
         .getName() + ".passwordHash";
+    public static final String TENANT = "tenant";
+    public static final String INDEXED_ATTRIBUTES = "indexedAttributes";
+    private static final Counter staleReads = UserStorageMetrics
+        .counter("cache.stale.reads");
     protected EntityManager em;
     protected ComponentModel model;
     protected KeycloakSession session;
+    protected UserCache cache;
+    protected SearchResultCache searchCache;
+    protected UserCacheInvalidator invalidator;
+    protected UserDatabaseGuard guard;
+    protected SqlTracer tracer;
+    protected LastLoginTracker lastLoginTracker;
+    protected GroupResolver groupResolver;
+    protected int groupMembersPageSize;
+    protected DirectorySnapshotManager snapshots;
     private boolean readOnly;
 
     UserStorageTestProvider(
         KeycloakSession session,
-        ComponentModel model
+        ComponentModel model,
+        UserCache cache,
+        SearchResultCache searchCache,
+        UserCacheInvalidator invalidator,
+        UserDatabaseGuard guard,
+        LastLoginTracker lastLoginTracker,
+        GroupResolver groupResolver,
+        int groupMembersPageSize,
+        DirectorySnapshotManager snapshots
     ) {
         this.session = session;
         this.model = model;
+        this.cache = cache;
+        this.searchCache = searchCache;
+        this.invalidator = invalidator;
+        this.guard = guard;
+        this.tracer = new SqlTracer(model);
+        this.lastLoginTracker = lastLoginTracker;
+        this.groupResolver = groupResolver;
+        this.groupMembersPageSize = Math.max(1, groupMembersPageSize);
+        this.snapshots = snapshots;
         this.readOnly =
             model.get("readOnly")==null ||
             model.get("readOnly").equals("true");
@@ -86,6 +125,7 @@ implements
 
     @Override
     public void preRemove(RealmModel realm, GroupModel group) {
+        groupResolver.invalidate(realm);
     }
 
     @Override
@@ -99,7 +139,26 @@ implements
     @Override
     public UserModel getUserById(RealmModel realm, String id) {
         String persistenceId = StorageId.externalId(id);
-        UserEntity entity = em.find(UserEntity.class, persistenceId);
+        String tenant = getTenant(realm);
+        UserEntity entity = fromSnapshot(s -> s.getById(tenant, persistenceId));
+
+        if (entity == null) {
+            entity = lookup(cache.getById(tenant, persistenceId), () -> {
+                TypedQuery<UserEntity> query = guard.withTimeout(em
+                    .createNamedQuery("getUserById", UserEntity.class));
+                query.setParameter("realm", tenant);
+                query.setParameter("id", persistenceId);
+                List<UserEntity> result = execute(
+                    "getUserById",
+                    "getUserById",
+                    query::getResultList,
+                    "realm",
+                    "id"
+                );
+
+                return result.isEmpty() ? null : result.get(0);
+            });
+        }
 
         if (entity == null) {
             logger.info("could not find user by id: " + id);
@@ -107,37 +166,187 @@ implements
             return null;
         }
 
-        return new UserAdapter(session, realm, model, entity);
+        return createAdapter(realm, entity);
     }
 
     @Override
     public UserModel getUserByUsername(RealmModel realm, String username) {
-        TypedQuery<UserEntity> query = em
-            .createNamedQuery("getUserByUsername", UserEntity.class);
-        query.setParameter("username", username);
-        List<UserEntity> result = query.getResultList();
+        String tenant = getTenant(realm);
+        UserEntity entity = fromSnapshot(s -> s.getByUsername(tenant, username));
 
-        if (result.isEmpty()) {
+        if (entity == null) {
+            entity = lookup(cache.getByUsername(tenant, username), () -> {
+                TypedQuery<UserEntity> query = guard.withTimeout(em
+                    .createNamedQuery("getUserByUsername", UserEntity.class));
+                query.setParameter("realm", tenant);
+                query.setParameter("username", username);
+                List<UserEntity> result = execute(
+                    "getUserByUsername",
+                    "getUserByUsername",
+                    query::getResultList,
+                    "realm",
+                    "username"
+                );
+
+                return result.isEmpty() ? null : result.get(0);
+            });
+        }
+
+        if (entity == null) {
             logger.info("could not find username: " + username);
 
             return null;
         }
 
-        return new UserAdapter(session, realm, model, result.get(0));
+        return createAdapter(realm, entity);
     }
 
     @Override
     public UserModel getUserByEmail(RealmModel realm, String email) {
-        TypedQuery<UserEntity> query = em
-            .createNamedQuery("getUserByEmail", UserEntity.class);
-        query.setParameter("email", email);
-        List<UserEntity> result = query.getResultList();
+        String tenant = getTenant(realm);
+        UserEntity entity = fromSnapshot(s -> s.getByEmail(tenant, email));
 
-        if (result.isEmpty()) {
+        if (entity == null) {
+            entity = lookup(cache.getByEmail(tenant, email), () -> {
+                TypedQuery<UserEntity> query = guard.withTimeout(em
+                    .createNamedQuery("getUserByEmail", UserEntity.class));
+                query.setParameter("realm", tenant);
+                query.setParameter("email", email);
+                List<UserEntity> result = execute(
+                    "getUserByEmail",
+                    "getUserByEmail",
+                    query::getResultList,
+                    "realm",
+                    "email"
+                );
+
+                return result.isEmpty() ? null : result.get(0);
+            });
+        }
+
+        if (entity == null) {
             return null;
         }
 
-        return new UserAdapter(session, realm, model, result.get(0));
+        return createAdapter(realm, entity);
+    }
+
+    /**
+     * Looks the user up in the directory snapshot. The snapshot is only
+     * used by read-only components, whose users cannot change through
+     * Keycloak; users missing from it are looked up as usual.
+     */
+    protected UserEntity fromSnapshot(
+        Function<DirectorySnapshot, UserEntity> lookup
+    ) {
+        if (!readOnly || snapshots == null) {
+            return null;
+        }
+
+        DirectorySnapshot snapshot = snapshots.current();
+
+        return snapshot == null ? null : lookup.apply(snapshot);
+    }
+
+    /**
+     * Returns the user from the cache if present, scheduling a background
+     * refresh for stale entries; otherwise loads it from the database and
+     * caches the result.
+     */
+    protected UserEntity lookup(
+        UserSnapshot snapshot,
+        Supplier<UserEntity> loader
+    ) {
+        if (snapshot != null) {
+            if (!cache.isFresh(snapshot)) {
+                staleReads.increment();
+                guard.revalidate(
+                    session.getKeycloakSessionFactory(),
+                    tracer,
+                    snapshot.getRealm(),
+                    snapshot.getId()
+                );
+            }
+
+            return snapshot.toEntity();
+        }
+
+        long epoch = cache.epoch();
+        UserEntity entity = loader.get();
+
+        if (entity != null) {
+            cacheUser(entity, epoch);
+        }
+
+        return entity;
+    }
+
+    /**
+     * Runs a database call through the {@link UserDatabaseGuard} and the
+     * {@link SqlTracer}.
+     */
+    protected <T> T execute(
+        String method,
+        String statement,
+        Supplier<T> action,
+        String... parameters
+    ) {
+        return guard.call(() -> tracer.trace(
+            method,
+            statement,
+            Arrays.asList(parameters),
+            action
+        ));
+    }
+
+    /**
+     * Returns the key that partitions the user database for the realm:
+     * the configured tenant of the component, or the realm name.
+     */
+    public static String getTenant(RealmModel realm, ComponentModel model) {
+        String tenant = model.get(TENANT);
+
+        return tenant == null || tenant.isBlank() ? realm.getName() : tenant;
+    }
+
+    protected String getTenant(RealmModel realm) {
+        return getTenant(realm, model);
+    }
+
+    /**
+     * Returns the names of the attributes that the component stores in
+     * the user database, from its comma-separated "indexedAttributes".
+     */
+    public static Set<String> getIndexedAttributes(ComponentModel model) {
+        String names = model.get(INDEXED_ATTRIBUTES);
+
+        if (names == null || names.isBlank()) {
+            return Set.of();
+        }
+
+        return Arrays.stream(names.split(","))
+            .map(String::trim)
+            .filter(name -> !name.isEmpty())
+            .collect(Collectors.toSet());
+    }
+
+    protected UserAdapter createAdapter(RealmModel realm, UserEntity entity) {
+        return new UserAdapter(
+            session,
+            realm,
+            model,
+            entity,
+            invalidator,
+            lastLoginTracker,
+            groupResolver,
+            tracer
+        );
+    }
+
+    protected void cacheUser(UserEntity entity, long epoch) {
+        if (cache.isEnabled() && !invalidator.hasPendingWrites(session)) {
+            cache.put(UserSnapshot.of(entity, tracer, "cacheUser"), epoch);
+        }
     }
 
     @Override
@@ -148,13 +357,15 @@ implements
 
         UserEntity entity = new UserEntity();
         entity.setId(UUID.randomUUID().toString());
+        entity.setRealm(getTenant(realm));
         entity.setUsername(username);
 
         em.persist(entity);
+        invalidator.invalidate(session, entity.getId());
 
         logger.info("added user: " + username);
 
-        return new UserAdapter(session, realm, model, entity);
+        return createAdapter(realm, entity);
     }
 
     @Override
@@ -164,13 +375,24 @@ implements
         }
 
         String persistenceId = StorageId.externalId(user.getId());
-        UserEntity entity = em.find(UserEntity.class, persistenceId);
+        TypedQuery<UserEntity> query = guard.withTimeout(em
+            .createNamedQuery("getUserById", UserEntity.class));
+        query.setParameter("realm", getTenant(realm));
+        query.setParameter("id", persistenceId);
+        List<UserEntity> result = execute(
+            "removeUser",
+            "getUserById",
+            query::getResultList,
+            "realm",
+            "id"
+        );
 
-        if (entity == null) {
+        if (result.isEmpty()) {
             return false;
         }
 
-        em.remove(entity);
+        em.remove(result.get(0));
+        invalidator.invalidate(session, persistenceId);
 
         return true;
     }
@@ -276,10 +498,20 @@ implements
         UserCredentialModel cred = (UserCredentialModel)input;
         String password_hash = getPasswordHash(user);
 
-        return
+        boolean valid =
             password_hash != null &&
             password_hash
                 .equals(Crypt.crypt(cred.getValue(), password_hash));
+
+        // read-only components never write to the user database
+        if (valid && lastLoginTracker != null && !readOnly) {
+            lastLoginTracker.record(
+                getTenant(realm),
+                StorageId.externalId(user.getId())
+            );
+        }
+
+        return valid;
     }
 
     public String getPasswordHash(UserModel user) {
@@ -299,8 +531,14 @@ implements
 
     @Override
     public int getUsersCount(RealmModel realm) {
-        Object count = em.createNamedQuery("getUserCount")
-            .getSingleResult();
+        Query query = guard.withTimeout(em.createNamedQuery("getUserCount"));
+        query.setParameter("realm", getTenant(realm));
+        Object count = execute(
+            "getUsersCount",
+            "getUserCount",
+            query::getSingleResult,
+            "realm"
+        );
 
         return ((Number)count).intValue();
     }
@@ -318,24 +556,69 @@ implements
             search = "";
         }
 
-        TypedQuery<UserEntity> query = em
-            .createNamedQuery("searchForUser", UserEntity.class);
+        String tenant = getTenant(realm);
+        String pattern = ("%" + search.toLowerCase().replace("*","%") + "%")
+            .replaceAll("%+", "%");
+        int first = firstResult == null || firstResult < 0 ? 0 : firstResult;
+        int max = maxResults == null || maxResults < 0 ? -1 : maxResults;
+        boolean cacheable = searchCache.isCacheable(max) &&
+            !invalidator.hasPendingWrites(session);
+
+        if (cacheable) {
+            List<String> ids = searchCache.get(tenant, pattern, first, max);
+
+            if (ids != null) {
+                return ids.stream()
+                    .map(id -> getUserById(
+                        realm,
+                        new StorageId(model.getId(), id).getId()
+                    ))
+                    .filter(Objects::nonNull);
+            }
+        }
 
-        query.setParameter(
-            "search",
-            "%" + search.toLowerCase().replace("*","%") + "%"
-        );
+        long epoch = searchCache.epoch();
+        TypedQuery<UserEntity> query = guard.withTimeout(em
+            .createNamedQuery("searchForUser", UserEntity.class));
+
+        query.setParameter("realm", tenant);
+        query.setParameter("search", pattern);
+        query.setFirstResult(first);
 
-        if (firstResult != null) {
-            query.setFirstResult(firstResult);
+        if (max >= 0) {
+            query.setMaxResults(max);
         }
 
-        if (maxResults != null) {
-            query.setMaxResults(maxResults);
+        if (!cacheable) {
+            return execute(
+                    "searchForUserStream",
+                    "searchForUser",
+                    query::getResultStream,
+                    "realm",
+                    "search"
+                )
+                .map(entity -> createAdapter(realm, entity));
         }
 
-        return query.getResultStream()
-            .map(entity -> new UserAdapter(session, realm, model, entity));
+        List<UserEntity> result = execute(
+            "searchForUserStream",
+            "searchForUser",
+            query::getResultList,
+            "realm",
+            "search"
+        );
+
+        searchCache.put(
+            tenant,
+            pattern,
+            first,
+            max,
+            result.stream().map(UserEntity::getId).collect(Collectors.toList()),
+            epoch
+        );
+
+        // the users themselves are cached when a later hit loads them by id
+        return result.stream().map(entity -> createAdapter(realm, entity));
     }
 
     @Override
@@ -345,7 +628,81 @@ implements
         Integer firstResult,
         Integer maxResults
     ) {
-        return Stream.empty();
+        int first = firstResult == null || firstResult < 0 ? 0 : firstResult;
+        int limit = maxResults == null || maxResults < 0 ?
+            Integer.MAX_VALUE :
+            maxResults;
+
+        if (limit == 0) {
+            return Stream.empty();
+        }
+
+        String tenant = getTenant(realm);
+        String path = KeycloakModelUtils.buildGroupPath(group);
+        int pageSize = Math.min(groupMembersPageSize, limit);
+        List<UserSnapshot> firstPage =
+            loadGroupMembers(tenant, path, "", first, pageSize);
+
+        return Stream
+            .iterate(
+                firstPage,
+                page -> !page.isEmpty(),
+                page -> page.size() < pageSize ?
+                    List.of() :
+                    loadGroupMembers(
+                        tenant,
+                        path,
+                        page.get(page.size() - 1).getId(),
+                        0,
+                        pageSize
+                    )
+            )
+            .flatMap(List::stream)
+            .limit(limit)
+            .map(snapshot -> createAdapter(realm, snapshot.toEntity()));
+    }
+
+    /**
+     * Loads one page of the members of a group, ordered by id and starting
+     * after the given id. Each page is read in a transaction of its own, so
+     * that the members of a large group do not accumulate in the
+     * persistence context of this session.
+     */
+    protected List<UserSnapshot> loadGroupMembers(
+        String tenant,
+        String path,
+        String after,
+        int first,
+        int max
+    ) {
+        KeycloakSessionFactory factory = session.getKeycloakSessionFactory();
+
+        return execute(
+            "getGroupMembersStream",
+            "getGroupMembersAfter",
+            () -> KeycloakModelUtils.runJobInTransactionWithResult(
+                factory,
+                pageSession -> {
+                    TypedQuery<UserEntity> query = guard.withTimeout(pageSession
+                        .getProvider(JpaConnectionProvider.class, "user-store")
+                        .getEntityManager()
+                        .createNamedQuery("getGroupMembersAfter", UserEntity.class));
+                    query.setParameter("realm", tenant);
+                    query.setParameter("path", path);
+                    query.setParameter("after", after);
+                    query.setFirstResult(first);
+                    query.setMaxResults(max);
+
+                    return query.getResultList()
+                        .stream()
+                        .map(UserSnapshot::of)
+                        .collect(Collectors.toList());
+                }
+            ),
+            "realm",
+            "path",
+            "after"
+        );
     }
 
     @Override
@@ -354,7 +711,27 @@ implements
         String attrName,
         String attrValue
     ) {
-        return Stream.empty();
+        if (!getIndexedAttributes(model).contains(attrName)) {
+            return Stream.empty();
+        }
+
+        TypedQuery<UserEntity> query = guard.withTimeout(em
+            .createNamedQuery("searchForUserByAttribute", UserEntity.class));
+
+        query.setParameter("realm", getTenant(realm));
+        query.setParameter("name", attrName);
+        query.setParameter("value", attrValue);
+
+        return execute(
+                "searchForUserByUserAttributeStream",
+                "searchForUserByAttribute",
+                query::getResultList,
+                "realm",
+                "name",
+                "value"
+            )
+            .stream()
+            .map(entity -> createAdapter(realm, entity));
     }
 
     public boolean getReadOnly() {
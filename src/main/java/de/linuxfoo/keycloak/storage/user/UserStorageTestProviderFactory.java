@@ -15,14 +15,27 @@
 
 package de.linuxfoo.keycloak.storage.user;
 
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
 import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterProvider;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.UserStorageProviderFactory;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
 
 public class UserStorageTestProviderFactory
 implements UserStorageProviderFactory<UserStorageTestProvider>
@@ -32,6 +45,263 @@ implements UserStorageProviderFactory<UserStorageTestProvider>
         .getLogger(UserStorageTestProviderFactory.class);
     private static List<ProviderConfigProperty> configProperties =
         new ArrayList<ProviderConfigProperty>();
+    private UserCache cache;
+    private SearchResultCache searchCache;
+    private UserCacheInvalidator invalidator;
+    private UserDatabaseGuard guard;
+    private Config.Scope config;
+    private UserStorageWarmUp warmUp;
+    private LastLoginTracker lastLoginTracker;
+    private GroupResolver groupResolver;
+    private SqlTracer jobTracer;
+    private int groupMembersPageSize;
+    private DirectorySnapshotManager snapshots;
+    private long invalidationBatchInterval;
+    private int invalidationBatchSize;
+
+    @Override
+    public void init(Config.Scope config) {
+        this.config = config;
+        cache = new UserCache(
+            config.getInt("cacheMaxEntries", 10000),
+            config.getLong("cacheTtl", 300L) * 1000L,
+            config.getLong("cacheMaxStale", 600L) * 1000L
+        );
+        searchCache = new SearchResultCache(
+            config.getInt("searchCacheMaxEntries", 1000),
+            config.getInt("searchCacheMaxPageSize", 200),
+            config.getLong("searchCacheTtl", 10L) * 1000L
+        );
+        UserStorageMetrics.gauge("search.cache.pages", searchCache::size);
+        invalidationBatchInterval =
+            config.getLong("invalidationBatchInterval", 100L);
+        invalidationBatchSize = config.getInt("invalidationBatchSize", 500);
+
+        CircuitBreaker breaker = new CircuitBreaker(
+            config.getInt("breakerWindowSize", 20),
+            config.getInt("breakerFailureRate", 50),
+            config.getLong("breakerSlowCallThreshold", 2000L),
+            config.getLong("breakerOpenDuration", 30L) * 1000L,
+            (from, to) -> UserStorageMetrics.counter(
+                "circuit.breaker.transitions",
+                "from", from.name().toLowerCase(),
+                "to", to.name().toLowerCase()
+            ).increment()
+        );
+        UserStorageMetrics.gauge(
+            "circuit.breaker.state",
+            () -> breaker.getState().ordinal()
+        );
+        guard = new UserDatabaseGuard(
+            cache,
+            config.getLong("queryTimeout", 5000L),
+            breaker,
+            config.getInt("revalidationThreads", 2)
+        );
+        groupResolver = new GroupResolver(
+            config.getInt("groupCacheMaxEntries", 10000),
+            config.getLong("groupCacheTtl", 60L) * 1000L
+        );
+        groupMembersPageSize = config.getInt("groupMembersPageSize", 500);
+        jobTracer = new SqlTracer(
+            PROVIDER_ID,
+            config.getLong("sqlTraceThreshold", 500L),
+            Double.parseDouble(config.get("sqlTraceSampleRate", "0"))
+        );
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+            InvalidationChannel channel;
+
+            if (cluster != null) {
+                channel = new ClusterInvalidationChannel(cluster);
+            } else {
+                logger.info(
+                    "no cluster provider available, " +
+                    "user cache invalidations stay node-local"
+                );
+                channel = new LocalInvalidationChannel();
+            }
+
+            invalidator = new UserCacheInvalidator(
+                cache,
+                searchCache,
+                channel,
+                invalidationBatchInterval,
+                invalidationBatchSize
+            );
+        });
+
+        factory.register(event -> {
+            if (event instanceof GroupModel.GroupPathChangeEvent) {
+                groupResolver.invalidate(
+                    ((GroupModel.GroupPathChangeEvent)event).getRealm()
+                );
+            } else if (event instanceof PostMigrationEvent) {
+                onPostMigration(factory);
+            }
+        });
+
+        if (config.getBoolean("lastLoginTracking", true)) {
+            lastLoginTracker = new LastLoginTracker(
+                factory,
+                jobTracer,
+                config.getInt("lastLoginMaxPending", 100000),
+                config.getInt("lastLoginBatchSize", 500),
+                config.getLong("lastLoginFlushInterval", 30L) * 1000L,
+                config.getLong("cacheMaxStale", 600L) * 1000L
+            );
+        }
+    }
+
+    /**
+     * Starts the jobs that read the databases once Keycloak has initialized
+     * all providers and migrated its database, but before it is ready.
+     */
+    private void onPostMigration(KeycloakSessionFactory factory) {
+        checkTenants(factory);
+
+        if (config.getBoolean("schemaAdvisor", false)) {
+            new SchemaAdvisor(factory).start();
+        }
+
+        String snapshotFile = config.get("snapshotFile");
+
+        if (snapshotFile != null && !snapshotFile.isBlank()) {
+            startSnapshots(factory, snapshotFile);
+        }
+
+        if (config.getBoolean("warmupEnabled", true)) {
+            warmUp(factory);
+        }
+    }
+
+    /**
+     * Warns about components whose tenant has no users while the user
+     * database holds users of other tenants. After the upgrade to the
+     * partitioned layout all rows belong to tenant "master", so a component
+     * of another realm would otherwise silently find no users.
+     */
+    private void checkTenants(KeycloakSessionFactory factory) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(factory, session -> {
+                EntityManager em = session
+                    .getProvider(JpaConnectionProvider.class, "user-store")
+                    .getEntityManager();
+
+                if (!hasUsers(em, null)) {
+                    return;
+                }
+
+                session.realms().getRealmsStream().forEach(realm ->
+                    getTenants(realm)
+                        .distinct()
+                        .filter(tenant -> !hasUsers(em, tenant))
+                        .forEach(tenant -> logger.warnf(
+                            "realm %s serves tenant %s, which has no users " +
+                            "in the user database, while other tenants " +
+                            "have; assign the rows to the tenant or set the " +
+                            "component's tenant property (see the upgrade " +
+                            "notes in the README)",
+                            realm.getName(),
+                            tenant
+                        ))
+                );
+            });
+        } catch (RuntimeException e) {
+            logger.warn("could not check the tenants of the user database", e);
+        }
+    }
+
+    /**
+     * Returns whether the tenant, or with null any tenant, has a user.
+     */
+    private boolean hasUsers(EntityManager em, String tenant) {
+        TypedQuery<String> query = tenant == null ?
+            em.createQuery("select u.id from UserEntity u", String.class) :
+            em.createQuery(
+                    "select u.id from UserEntity u where u.realm = :realm",
+                    String.class
+                )
+                .setParameter("realm", tenant);
+        query.setMaxResults(1);
+
+        return !jobTracer.trace(
+            "checkTenants",
+            "UserEntity",
+            tenant == null ? List.of() : List.of("realm"),
+            query::getResultList
+        ).isEmpty();
+    }
+
+    private void startSnapshots(KeycloakSessionFactory factory, String file) {
+        snapshots = new DirectorySnapshotManager(
+            Paths.get(file),
+            new DirectorySnapshotBuilder(
+                factory,
+                jobTracer,
+                config.getInt("snapshotChunkSize", 1000)
+            ),
+            config.getLong("snapshotRefreshInterval", 3600L) * 1000L
+        );
+        UserStorageMetrics.gauge("snapshot.users", () -> {
+            DirectorySnapshot snapshot = snapshots.current();
+
+            return snapshot == null ? 0 : snapshot.size();
+        });
+        UserStorageMetrics.gauge("snapshot.age.seconds", () -> {
+            DirectorySnapshot snapshot = snapshots.current();
+
+            return snapshot == null ?
+                -1 :
+                (System.currentTimeMillis() - snapshot.getCreatedAt()) / 1000L;
+        });
+        snapshots.start();
+    }
+
+    /**
+     * Returns the directory snapshots of this node, or null if they are not
+     * configured.
+     */
+    public DirectorySnapshotManager getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * Runs the warm-up in the background. Unless configured otherwise,
+     * startup, and with it Keycloak's readiness, waits for it to complete,
+     * unless a directory snapshot can serve users in the meantime.
+     */
+    private void warmUp(KeycloakSessionFactory factory) {
+        warmUp = new UserStorageWarmUp(
+            factory,
+            jobTracer,
+            cache,
+            config.getInt("warmupUsers", 0),
+            config.getInt("warmupBatchSize", 100)
+        );
+        UserStorageMetrics.gauge(
+            "warmup.complete",
+            () -> warmUp.isComplete() ? 1 : 0
+        );
+        warmUp.start();
+
+        if (config.getBoolean("warmupBlocking", true) &&
+            (snapshots == null || snapshots.current() == null)) {
+            long timeout = config.getLong("warmupTimeout", 120L) * 1000L;
+
+            if (!warmUp.await(timeout)) {
+                logger.warnf(
+                    "warm-up did not finish within %d ms, " +
+                    "continuing startup",
+                    timeout
+                );
+            }
+        }
+    }
 
     @Override
     public UserStorageTestProvider create(
@@ -50,8 +320,83 @@ implements UserStorageProviderFactory<UserStorageTestProvider>
                 "or attributes can be modified)."
             )
             .add()
+          .property()
+            .name(UserStorageTestProvider.TENANT)
+            .label("Tenant")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText(
+                "Value of the realm column that selects this realm's " +
+                "users and roles in the user database; " +
+                "defaults to the realm name."
+            )
+            .add()
+          .property()
+            .name(UserStorageTestProvider.INDEXED_ATTRIBUTES)
+            .label("Indexed attributes")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText(
+                "Comma-separated names of user attributes that are stored " +
+                "in the user_attributes table of the user database and " +
+                "can be searched by value."
+            )
+            .add()
+          .property()
+            .name(SqlTracer.THRESHOLD)
+            .label("SQL trace threshold (ms)")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue("500")
+            .helpText(
+                "Queries taking at least this many milliseconds are " +
+                "logged with their bind parameters redacted; " +
+                "a negative value disables slow query logging."
+            )
+            .add()
+          .property()
+            .name(SqlTracer.SAMPLE_RATE)
+            .label("SQL trace sample rate")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue("0")
+            .helpText(
+                "Fraction of all queries, between 0 and 1, that are " +
+                "logged regardless of their duration."
+            )
+            .add()
           .build();
-        return new UserStorageTestProvider(session, model);
+        return new UserStorageTestProvider(
+            session,
+            model,
+            cache,
+            searchCache,
+            invalidator,
+            guard,
+            lastLoginTracker,
+            groupResolver,
+            groupMembersPageSize,
+            snapshots
+        );
+    }
+
+    /**
+     * Returns the components of this provider that are attached to the
+     * realm.
+     */
+    public static Stream<ComponentModel> getComponents(RealmModel realm) {
+        return realm
+            .getComponentsStream(
+                realm.getId(),
+                UserStorageProvider.class.getName()
+            )
+            .filter(component -> PROVIDER_ID.equals(component.getProviderId()));
+    }
+
+    /**
+     * Returns the tenant keys of the components of this provider that are
+     * attached to the realm.
+     */
+    public static Stream<String> getTenants(RealmModel realm) {
+        return getComponents(realm)
+            .map(component -> UserStorageTestProvider
+                .getTenant(realm, component));
     }
 
     @Override
@@ -66,6 +411,21 @@ implements UserStorageProviderFactory<UserStorageTestProvider>
 
     @Override
     public void close() {
+        if (invalidator != null) {
+            invalidator.close();
+        }
+
+        if (guard != null) {
+            guard.close();
+        }
+
+        if (lastLoginTracker != null) {
+            lastLoginTracker.close();
+        }
+
+        if (snapshots != null) {
+            snapshots.close();
+        }
     }
 
     @Override
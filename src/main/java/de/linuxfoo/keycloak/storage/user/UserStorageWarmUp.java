@@ -0,0 +1,309 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+package de.linuxfoo.keycloak.storage.user;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import jakarta.persistence.TypedQuery;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Warms up the provider after a (re)start: runs every named query once,
+ * so that Hibernate has interpreted it, connections have been opened and
+ * the database has planned the statements, resolves the roles mapped in
+ * the user database, so that Keycloak's realm cache holds them, and
+ * optionally loads the most recently active users into the
+ * {@link UserCache}.
+ */
+public class UserStorageWarmUp {
+    private static final Logger logger = Logger
+        .getLogger(UserStorageWarmUp.class);
+    private final KeycloakSessionFactory factory;
+    private final SqlTracer tracer;
+    private final UserCache cache;
+    private final int users;
+    private final int batchSize;
+    private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+    public UserStorageWarmUp(
+        KeycloakSessionFactory factory,
+        SqlTracer tracer,
+        UserCache cache,
+        int users,
+        int batchSize
+    ) {
+        this.factory = factory;
+        this.tracer = tracer;
+        this.cache = cache;
+        this.users = users;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public boolean isComplete() {
+        return done.isDone();
+    }
+
+    /**
+     * Starts the warm-up on a background thread.
+     */
+    public void start() {
+        Thread thread = new Thread(
+            this::run,
+            UserStorageTestProviderFactory.PROVIDER_ID + "-warmup"
+        );
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits for the warm-up to finish; returns false on timeout.
+     */
+    public boolean await(long timeoutMillis) {
+        try {
+            done.get(timeoutMillis, TimeUnit.MILLISECONDS);
+
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            return false;
+        }
+    }
+
+    private void run() {
+        long start = System.currentTimeMillis();
+
+        try {
+            List<String> tenants = KeycloakModelUtils
+                .runJobInTransactionWithResult(factory, session -> {
+                    EntityManager em = getEntityManager(session);
+                    prepareQueries(em);
+
+                    return resolveRoles(session, em);
+                });
+
+            if (users > 0 && !tenants.isEmpty()) {
+                preloadUsers(tenants);
+            }
+
+            logger.infof(
+                "warm-up finished after %d ms",
+                System.currentTimeMillis() - start
+            );
+            done.complete(null);
+        } catch (RuntimeException e) {
+            logger.warn("warm-up failed", e);
+            done.completeExceptionally(e);
+        }
+    }
+
+    private void prepareQueries(EntityManager em) {
+        prepare("getUserById", em.createNamedQuery("getUserById")
+            .setParameter("realm", "")
+            .setParameter("id", ""));
+        prepare("getUserByUsername", em.createNamedQuery("getUserByUsername")
+            .setParameter("realm", "")
+            .setParameter("username", ""));
+        prepare("getUserByEmail", em.createNamedQuery("getUserByEmail")
+            .setParameter("realm", "")
+            .setParameter("email", ""));
+        prepare("getUserCount", em.createNamedQuery("getUserCount")
+            .setParameter("realm", ""));
+        prepare("getAllUsers", em.createNamedQuery("getAllUsers")
+            .setParameter("realm", "")
+            .setMaxResults(1));
+        prepare("searchForUser", em.createNamedQuery("searchForUser")
+            .setParameter("realm", "")
+            .setParameter("search", "")
+            .setMaxResults(1));
+        prepare("searchForUserByAttribute", em.createNamedQuery("searchForUserByAttribute")
+            .setParameter("realm", "")
+            .setParameter("name", "")
+            .setParameter("value", ""));
+        prepare("getRecentlyActiveUserIds", em.createNamedQuery("getRecentlyActiveUserIds")
+            .setParameter("realms", List.of(""))
+            .setMaxResults(1));
+        prepare("getUsersWithRoles", em.createNamedQuery("getUsersWithRoles")
+            .setParameter("realms", List.of(""))
+            .setParameter("ids", List.of("")));
+        prepare("getUsersAfter", em.createNamedQuery("getUsersAfter")
+            .setParameter("realm", "")
+            .setParameter("after", "")
+            .setMaxResults(1));
+        prepare("getGroupMembersAfter", em.createNamedQuery("getGroupMembersAfter")
+            .setParameter("realm", "")
+            .setParameter("path", "")
+            .setParameter("after", "")
+            .setMaxResults(1));
+        prepare("getClientRoleNamesOfUsers", em.createNamedQuery("getClientRoleNamesOfUsers")
+            .setParameter("realm", "")
+            .setParameter("ids", List.of("")));
+        prepare("getRealmRoleNamesOfUsers", em.createNamedQuery("getRealmRoleNamesOfUsers")
+            .setParameter("realm", "")
+            .setParameter("ids", List.of("")));
+
+        logger.info("warm-up: prepared named queries");
+    }
+
+    private void prepare(String name, Query query) {
+        tracer.trace("warmUp", name, List.of(), query::getResultList);
+    }
+
+    /**
+     * Looks up the Keycloak role of every role row of the realms served by
+     * this provider and returns their tenant keys.
+     */
+    private List<String> resolveRoles(KeycloakSession session, EntityManager em) {
+        List<RealmModel> realms = session.realms()
+            .getRealmsStream()
+            .collect(Collectors.toList());
+        List<String> allTenants = new ArrayList<String>();
+        int clientRoles = 0;
+        int realmRoles = 0;
+
+        for (RealmModel realm : realms) {
+            List<String> tenants = UserStorageTestProviderFactory
+                .getTenants(realm)
+                .distinct()
+                .collect(Collectors.toList());
+
+            if (tenants.isEmpty()) {
+                continue;
+            }
+
+            allTenants.addAll(tenants);
+
+            TypedQuery<ClientRoleEntity> clientRoleQuery = em
+                .createQuery(
+                    "select r from ClientRoleEntity r where r.realm in :realms",
+                    ClientRoleEntity.class
+                )
+                .setParameter("realms", tenants);
+
+            for (ClientRoleEntity role : tracer.trace(
+                "warmUp",
+                "ClientRoleEntity",
+                List.of("realms"),
+                clientRoleQuery::getResultList
+            )) {
+                ClientModel client = realm.getClientByClientId(role.getClient());
+
+                if (client != null && client.getRole(role.getRole()) != null) {
+                    clientRoles++;
+                }
+            }
+
+            TypedQuery<RealmRoleEntity> realmRoleQuery = em
+                .createQuery(
+                    "select r from RealmRoleEntity r where r.realm in :realms",
+                    RealmRoleEntity.class
+                )
+                .setParameter("realms", tenants);
+
+            for (RealmRoleEntity role : tracer.trace(
+                "warmUp",
+                "RealmRoleEntity",
+                List.of("realms"),
+                realmRoleQuery::getResultList
+            )) {
+                if (realm.getRole(role.getRole()) != null) {
+                    realmRoles++;
+                }
+            }
+        }
+
+        logger.infof(
+            "warm-up: resolved %d client roles and %d realm roles",
+            clientRoles,
+            realmRoles
+        );
+
+        return allTenants.stream().distinct().collect(Collectors.toList());
+    }
+
+    private void preloadUsers(List<String> tenants) {
+        List<String> ids = KeycloakModelUtils.runJobInTransactionWithResult(
+            factory,
+            session -> {
+                TypedQuery<String> query = getEntityManager(session)
+                    .createNamedQuery("getRecentlyActiveUserIds", String.class)
+                    .setParameter("realms", tenants)
+                    .setMaxResults(users);
+
+                return tracer.trace(
+                    "warmUp",
+                    "getRecentlyActiveUserIds",
+                    List.of("realms"),
+                    query::getResultList
+                );
+            }
+        );
+
+        for (int i = 0; i < ids.size(); i += batchSize) {
+            List<String> batch = ids.subList(
+                i,
+                Math.min(i + batchSize, ids.size())
+            );
+
+            KeycloakModelUtils.runJobInTransaction(factory, session -> {
+                long epoch = cache.epoch();
+                TypedQuery<UserEntity> query = getEntityManager(session)
+                    .createNamedQuery("getUsersWithRoles", UserEntity.class)
+                    .setParameter("realms", tenants)
+                    .setParameter("ids", batch);
+                List<UserEntity> entities = tracer.trace(
+                    "warmUp",
+                    "getUsersWithRoles",
+                    List.of("realms", "ids"),
+                    query::getResultList
+                );
+
+                for (UserEntity entity : entities) {
+                    cache.put(UserSnapshot.of(entity, tracer, "warmUp"), epoch);
+                }
+            });
+
+            logger.infof(
+                "warm-up: cached %d of %d users",
+                Math.min(i + batchSize, ids.size()),
+                ids.size()
+            );
+        }
+    }
+
+    private static EntityManager getEntityManager(KeycloakSession session) {
+        return session
+            .getProvider(JpaConnectionProvider.class, "user-store")
+            .getEntityManager();
+    }
+}
@@ -0,0 +1,69 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+
+package de.linuxfoo.keycloak.storage.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+public class CircuitBreakerTest {
+    @Test
+    public void opensWhenFailureRateIsReached() {
+        CircuitBreaker breaker = new CircuitBreaker(4, 50, 1000L, 60000L, null);
+
+        breaker.record(breaker.tryAcquire(), true, 0L);
+        breaker.record(breaker.tryAcquire(), false, 0L);
+        breaker.record(breaker.tryAcquire(), true, 0L);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.record(breaker.tryAcquire(), true, 5000L);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertNull(breaker.tryAcquire());
+    }
+
+    @Test
+    public void onlyTheProbeClosesHalfOpenBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 100, 1000L, 0L, null);
+        CircuitBreaker.Permit late = breaker.tryAcquire();
+
+        breaker.record(breaker.tryAcquire(), false, 0L);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        CircuitBreaker.Permit probe = breaker.tryAcquire();
+        assertNotNull(probe);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        breaker.record(late, true, 0L);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertNull(breaker.tryAcquire(), "second probe admitted");
+
+        breaker.record(probe, true, 0L);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void failedProbeReopensBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 100, 1000L, 0L, null);
+
+        breaker.record(breaker.tryAcquire(), false, 0L);
+        breaker.record(breaker.tryAcquire(), false, 0L);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+}
@@ -0,0 +1,211 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+
+package de.linuxfoo.keycloak.storage.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+
+/**
+ * Builds a {@link DirectorySnapshot} with {@link DirectorySnapshotBuilder}
+ * and looks its users up again. The realm "test" serves the tenants
+ * "staff", whose ids and usernames "Aa" and "BB" have the same hash, and
+ * "empty", which has no users.
+ */
+public class DirectorySnapshotTest {
+    private static final String TENANT = "staff";
+    private static final String EMPTY = "empty";
+    private final List<UserEntity> users = List.of(
+        user("Aa", "aa@example.test"),
+        user("BB", null),
+        user("u3", "u3@example.test")
+    );
+    private Path directory;
+    private Path file;
+    private int built;
+    private DirectorySnapshot snapshot;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("snapshot");
+        file = directory.resolve("users.snapshot");
+
+        TestSessionFactory factory = new TestSessionFactory(this::entityManager)
+            .withProvider(RealmProvider.class, realms());
+        built = new DirectorySnapshotBuilder(
+            factory.get(),
+            new SqlTracer("test", -1L, 0.0),
+            2
+        ).build(file);
+        snapshot = DirectorySnapshot.open(file);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder())
+                    .collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void findsAllUsers() {
+        assertEquals(3, built);
+        assertEquals(3, snapshot.size());
+
+        for (UserEntity user : users) {
+            UserEntity found = snapshot.getById(TENANT, user.getId());
+
+            assertEquals(user.getId(), found.getId());
+            assertEquals(TENANT, found.getRealm());
+            assertEquals(user.getUsername(), found.getUsername());
+            assertEquals(user.getEmail(), found.getEmail());
+            assertEquals(user.getCreatedTimestamp(), found.getCreatedTimestamp());
+            assertNull(found.getLastLogin());
+        }
+    }
+
+    @Test
+    public void resolvesHashCollisions() {
+        assertEquals(
+            DirectorySnapshot.hash(TENANT, "Aa"),
+            DirectorySnapshot.hash(TENANT, "BB")
+        );
+        assertEquals("Aa", snapshot.getById(TENANT, "Aa").getId());
+        assertEquals("BB", snapshot.getById(TENANT, "BB").getId());
+        assertEquals("Aa", snapshot.getByUsername(TENANT, "user-Aa").getId());
+        assertEquals("BB", snapshot.getByUsername(TENANT, "user-BB").getId());
+        // "C#" has the hash of "Aa" and "BB", but no user
+        assertNull(snapshot.getById(TENANT, "C#"));
+    }
+
+    @Test
+    public void skipsMissingEmails() {
+        assertEquals("Aa", snapshot.getByEmail(TENANT, "aa@example.test").getId());
+        assertEquals("u3", snapshot.getByEmail(TENANT, "u3@example.test").getId());
+        assertNull(snapshot.getByEmail(TENANT, null));
+        assertNull(snapshot.getByEmail(TENANT, ""));
+    }
+
+    @Test
+    public void separatesTenants() {
+        assertNull(snapshot.getById(EMPTY, "Aa"));
+        assertNull(snapshot.getByUsername(EMPTY, "user-Aa"));
+        assertNull(snapshot.getById("test", "Aa"));
+    }
+
+    @Test
+    public void createsPrivateFile() throws IOException {
+        if (!FileSystems.getDefault().supportedFileAttributeViews()
+                .contains("posix")) {
+            return;
+        }
+
+        assertEquals(
+            PosixFilePermissions.fromString("rw-------"),
+            Files.getPosixFilePermissions(file)
+        );
+    }
+
+    private static UserEntity user(String id, String email) {
+        UserEntity entity = new UserEntity();
+        entity.setId(id);
+        entity.setRealm(TENANT);
+        entity.setUsername("user-" + id);
+        entity.setEmail(email);
+        entity.setCreatedTimestamp(1700000000000L);
+
+        return entity;
+    }
+
+    private TestEntityManager entityManager() {
+        return new TestEntityManager().onQuery(
+            "getUsersAfter",
+            call -> users.stream()
+                .filter(user -> user.getRealm().equals(call.get("realm")))
+                .filter(user -> user.getId()
+                    .compareTo((String)call.get("after")) > 0)
+                .sorted(Comparator.comparing(UserEntity::getId))
+                .limit(call.getMax())
+                .collect(Collectors.toList())
+        );
+    }
+
+    private RealmProvider realms() {
+        RealmModel realm = realm();
+
+        return (RealmProvider)Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { RealmProvider.class },
+            (proxy, method, args) -> {
+                if (method.getName().equals("getRealmsStream")) {
+                    return Stream.of(realm);
+                }
+
+                throw new UnsupportedOperationException(method.getName());
+            }
+        );
+    }
+
+    private RealmModel realm() {
+        return (RealmModel)Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { RealmModel.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getId":
+                    case "getName":
+                        return "test";
+                    case "getComponentsStream":
+                        return Stream.of(component(TENANT), component(EMPTY));
+                    default:
+                        throw new UnsupportedOperationException(
+                            method.getName()
+                        );
+                }
+            }
+        );
+    }
+
+    private static ComponentModel component(String tenant) {
+        ComponentModel model = new ComponentModel();
+        model.setId(tenant);
+        model.setName(tenant);
+        model.setProviderId(UserStorageTestProviderFactory.PROVIDER_ID);
+        model.put(UserStorageTestProvider.TENANT, tenant);
+
+        return model;
+    }
+}
@@ -0,0 +1,133 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+
+package de.linuxfoo.keycloak.storage.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A {@link LastLoginTracker} that tracks at most two users and is only
+ * flushed by the tests.
+ */
+public class LastLoginTrackerTest {
+    private static final String REALM = "test";
+    private final TestConnections connections = new TestConnections();
+    private LastLoginTracker tracker;
+
+    @BeforeEach
+    public void setUp() {
+        TestSessionFactory factory = new TestSessionFactory(
+            () -> new TestEntityManager().withConnections(connections)
+        );
+        tracker = new LastLoginTracker(
+            factory.get(),
+            new SqlTracer("test", -1L, 0.0),
+            2,
+            10,
+            3600000L,
+            3600000L
+        );
+    }
+
+    @AfterEach
+    public void tearDown() {
+        tracker.close();
+    }
+
+    @Test
+    public void flushWritesRecordedLogins() {
+        tracker.record(REALM, "a");
+        tracker.record(REALM, "b");
+        tracker.flush();
+
+        assertEquals(Set.of("a", "b"), writtenIds());
+        assertNotNull(tracker.getLastLogin(REALM, "a"));
+    }
+
+    @Test
+    public void writtenLoginsAreEvictedAtCapacity() {
+        tracker.record(REALM, "a");
+        tracker.record(REALM, "b");
+        tracker.flush();
+        tracker.record(REALM, "c");
+
+        assertNotNull(tracker.getLastLogin(REALM, "c"));
+        assertEquals(2, countTracked("a", "b", "c"));
+    }
+
+    @Test
+    public void loginsBeingWrittenAreNotEvicted() throws Exception {
+        CountDownLatch preparing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        connections.onPrepare(sql -> {
+            preparing.countDown();
+
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        tracker.record(REALM, "a");
+        tracker.record(REALM, "b");
+
+        CompletableFuture<Void> flush = CompletableFuture.runAsync(tracker::flush);
+        assertTrue(preparing.await(10, TimeUnit.SECONDS));
+        // at capacity while a and b are in flight: c is dropped
+        tracker.record(REALM, "c");
+        release.countDown();
+        flush.get(10, TimeUnit.SECONDS);
+
+        assertEquals(Set.of("a", "b"), writtenIds());
+        assertNull(tracker.getLastLogin(REALM, "c"));
+    }
+
+    private Set<String> writtenIds() {
+        List<TestConnections.Execution> executions =
+            connections.getExecutions();
+        assertEquals(1, executions.size());
+
+        return executions.get(0).getRows().stream()
+            .map(row -> (String)row.get(2))
+            .collect(Collectors.toSet());
+    }
+
+    private int countTracked(String... ids) {
+        int tracked = 0;
+
+        for (String id : ids) {
+            if (tracker.getLastLogin(REALM, id) != null) {
+                tracked++;
+            }
+        }
+
+        return tracked;
+    }
+}
@@ -0,0 +1,191 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+
+package de.linuxfoo.keycloak.storage.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Pending role mappings of a {@link RoleMappingWriter} and the statements
+ * that write them on commit.
+ */
+public class RoleMappingWriterTest {
+    private static final String REALM = "test";
+    private final TestConnections connections = new TestConnections();
+    private final TestSession session = new TestSession(
+        new TestEntityManager().withConnections(connections),
+        null
+    );
+    private final SqlTracer tracer = new SqlTracer("test", -1L, 0.0);
+
+    @Test
+    public void revocationCancelsPendingGrant() {
+        UserEntity user = user("u1");
+        RoleMappingWriter writer = RoleMappingWriter.of(session.get(), tracer);
+        writer.grant(user, realmRole("r1"));
+        writer.revoke(user, realmRole("r1"));
+
+        assertEquals(Set.of(), realmRoleIds(user));
+
+        session.commit();
+
+        assertEquals(List.of(), connections.getExecutions());
+    }
+
+    @Test
+    public void grantCancelsPendingRevocation() {
+        UserEntity user = user("u1");
+        user.getClientRoles().add(clientRole("c1"));
+        RoleMappingWriter writer = RoleMappingWriter.of(session.get(), tracer);
+        writer.revoke(user, clientRole("c1"));
+
+        assertEquals(Set.of(), clientRoleIds(user));
+
+        writer.grant(user, clientRole("c1"));
+
+        assertEquals(Set.of("c1"), clientRoleIds(user));
+
+        session.commit();
+
+        assertEquals(List.of(), connections.getExecutions());
+    }
+
+    @Test
+    public void writesPendingChangesOnCommit() {
+        UserEntity user = user("u1");
+        user.getRealmRoles().add(realmRole("r1"));
+        RoleMappingWriter writer = RoleMappingWriter.of(session.get(), tracer);
+        writer.revoke(user, realmRole("r1"));
+        writer.grant(user, realmRole("r2"));
+
+        assertEquals(Set.of("r2"), realmRoleIds(user));
+        assertEquals(Set.of("r1"), user.getRealmRoles().stream()
+            .map(RealmRoleEntity::getId)
+            .collect(Collectors.toSet()));
+
+        session.commit();
+        List<TestConnections.Execution> executions = connections.getExecutions();
+
+        assertEquals(2, executions.size());
+        assertEquals(
+            "DELETE FROM users_to_realm_roles " +
+                "WHERE (realm, user_id, realm_role_id) IN ((?, ?, ?))",
+            executions.get(0).getSql()
+        );
+        assertEquals(
+            List.of(List.of(REALM, "u1", "r1")),
+            executions.get(0).getRows()
+        );
+        assertEquals(
+            "INSERT INTO users_to_realm_roles " +
+                "(realm, user_id, realm_role_id) VALUES (?, ?, ?)",
+            executions.get(1).getSql()
+        );
+        assertEquals(
+            List.of(List.of(REALM, "u1", "r2")),
+            executions.get(1).getRows()
+        );
+        // the writer is gone with the transaction
+        assertEquals(Set.of("r1"), realmRoleIds(user));
+    }
+
+    @Test
+    public void splitsLargeChangesIntoChunks() {
+        int grants = 2 * RoleMappingWriter.MAX_ROWS + 1;
+        RoleMappingWriter writer = RoleMappingWriter.of(session.get(), tracer);
+
+        for (int i = 0; i < grants; i++) {
+            writer.grant(user("u" + i / 10), clientRole("c" + i % 10));
+        }
+
+        session.commit();
+
+        assertEquals(
+            List.of(
+                3 * RoleMappingWriter.MAX_ROWS,
+                3 * RoleMappingWriter.MAX_ROWS,
+                3
+            ),
+            connections.getExecutions().stream()
+                .map(execution -> execution.getRows().get(0).size())
+                .collect(Collectors.toList())
+        );
+        assertEquals(
+            List.of(RoleMappingWriter.MAX_ROWS, RoleMappingWriter.MAX_ROWS, 1),
+            connections.getExecutions().stream()
+                .map(execution -> execution.getSql().split("\\(\\?").length - 1)
+                .collect(Collectors.toList())
+        );
+    }
+
+    @Test
+    public void rollbackDiscardsPendingChanges() {
+        UserEntity user = user("u1");
+        RoleMappingWriter.of(session.get(), tracer).grant(user, realmRole("r1"));
+        session.rollback();
+
+        assertEquals(Set.of(), realmRoleIds(user));
+
+        session.commit();
+
+        assertEquals(List.of(), connections.getExecutions());
+    }
+
+    private Set<String> clientRoleIds(UserEntity user) {
+        return RoleMappingWriter.getClientRoles(session.get(), user).stream()
+            .map(ClientRoleEntity::getId)
+            .collect(Collectors.toSet());
+    }
+
+    private Set<String> realmRoleIds(UserEntity user) {
+        return RoleMappingWriter.getRealmRoles(session.get(), user).stream()
+            .map(RealmRoleEntity::getId)
+            .collect(Collectors.toSet());
+    }
+
+    private static UserEntity user(String id) {
+        UserEntity entity = new UserEntity();
+        entity.setId(id);
+        entity.setRealm(REALM);
+        entity.setUsername(id);
+
+        return entity;
+    }
+
+    private static ClientRoleEntity clientRole(String id) {
+        ClientRoleEntity role = new ClientRoleEntity();
+        role.setId(id);
+        role.setRealm(REALM);
+        role.setClient("app");
+        role.setRole(id);
+
+        return role;
+    }
+
+    private static RealmRoleEntity realmRole(String id) {
+        RealmRoleEntity role = new RealmRoleEntity();
+        role.setId(id);
+        role.setRealm(REALM);
+        role.setRole(id);
+
+        return role;
+    }
+}
@@ -0,0 +1,104 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+
+package de.linuxfoo.keycloak.storage.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import jakarta.persistence.NamedQuery;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the hand-written SQL of {@link SchemaAdvisor} covers every
+ * named query of the entities, in the same order.
+ */
+public class SchemaAdvisorTest {
+    private static final List<Class<?>> ENTITIES = List.of(
+        UserEntity.class,
+        ClientRoleEntity.class,
+        RealmRoleEntity.class,
+        GroupEntity.class,
+        UserAttributeEntity.class
+    );
+
+    @Test
+    public void explainsEveryNamedQuery() {
+        for (NamedQuery query : namedQueries()) {
+            assertTrue(
+                SchemaAdvisor.QUERIES.containsKey(query.name()),
+                "no SQL for the named query " + query.name()
+            );
+        }
+    }
+
+    @Test
+    public void ordersLikeTheNamedQueries() {
+        for (NamedQuery query : namedQueries()) {
+            assertEquals(
+                orderBy(query.query()),
+                orderBy(SchemaAdvisor.QUERIES.get(query.name())),
+                "order of " + query.name()
+            );
+        }
+    }
+
+    @Test
+    public void dropsNullOrderForMySql() {
+        String sql = SchemaAdvisor.QUERIES.get("getRecentlyActiveUserIds");
+
+        assertEquals(sql, SchemaAdvisor.toDialect(sql, true));
+        assertEquals(
+            "SELECT id FROM users WHERE realm IN (?) " +
+                "ORDER BY last_login DESC, createdTimestamp DESC LIMIT 100",
+            SchemaAdvisor.toDialect(sql, false)
+        );
+    }
+
+    private static List<NamedQuery> namedQueries() {
+        List<NamedQuery> queries = new ArrayList<NamedQuery>();
+
+        for (Class<?> entity : ENTITIES) {
+            queries.addAll(List.of(entity.getAnnotationsByType(NamedQuery.class)));
+        }
+
+        assertTrue(queries.size() > 10, "named queries not found");
+
+        return queries;
+    }
+
+    /**
+     * Returns the ORDER BY clause of JPQL or SQL without aliases and
+     * LIMIT, in lower case, or null if there is none.
+     */
+    private static String orderBy(String query) {
+        String lower = query.toLowerCase(Locale.ROOT);
+        int start = lower.indexOf(" order by ");
+
+        if (start < 0) {
+            return null;
+        }
+
+        return lower
+            .substring(start + " order by ".length())
+            .replaceAll(" limit .*", "")
+            .replaceAll("\\b\\w+\\.", "")
+            .trim();
+    }
+}
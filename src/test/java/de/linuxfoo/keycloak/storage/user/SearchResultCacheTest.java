@@ -0,0 +1,108 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+
+package de.linuxfoo.keycloak.storage.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Pages of a {@link SearchResultCache} holding at most three pages of up
+ * to ten users.
+ */
+public class SearchResultCacheTest {
+    private static final String TENANT = "test";
+    private final SearchResultCache cache = new SearchResultCache(3, 10, 60000L);
+
+    @Test
+    public void servesCachedPage() {
+        cache.put(TENANT, "%a%", 0, 10, List.of("u1", "u2"), cache.epoch());
+
+        assertEquals(List.of("u1", "u2"), cache.get(TENANT, "%a%", 0, 10));
+        assertNull(cache.get(TENANT, "%a%", 10, 10));
+        assertNull(cache.get(TENANT, "%b%", 0, 10));
+        assertNull(cache.get("other", "%a%", 0, 10));
+    }
+
+    @Test
+    public void dropsPageLoadedBeforeWrite() {
+        long epoch = cache.epoch();
+        cache.invalidate();
+        cache.put(TENANT, "%a%", 0, 10, List.of("u1"), epoch);
+
+        assertNull(cache.get(TENANT, "%a%", 0, 10));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void writeDropsAllPages() {
+        cache.put(TENANT, "%a%", 0, 10, List.of("u1"), cache.epoch());
+        cache.put(TENANT, "%b%", 0, 10, List.of("u2"), cache.epoch());
+        cache.invalidate();
+
+        assertEquals(0, cache.size());
+        assertNull(cache.get(TENANT, "%a%", 0, 10));
+    }
+
+    @Test
+    public void cachesOnlyBoundedPages() {
+        assertTrue(cache.isCacheable(0));
+        assertTrue(cache.isCacheable(10));
+        assertFalse(cache.isCacheable(11));
+        assertFalse(cache.isCacheable(-1));
+
+        cache.put(TENANT, "%a%", 0, 11, List.of("u1"), cache.epoch());
+        cache.put(TENANT, "%a%", 0, -1, List.of("u1"), cache.epoch());
+        cache.put(TENANT, "%a%", 0, 1, List.of("u1", "u2"), cache.epoch());
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void staysWithinMaxEntries() {
+        for (int i = 0; i < 10; i++) {
+            cache.put(TENANT, "%" + i + "%", 0, 10, List.of("u" + i), cache.epoch());
+
+            assertTrue(cache.size() <= 3);
+        }
+
+        assertEquals(List.of("u9"), cache.get(TENANT, "%9%", 0, 10));
+    }
+
+    @Test
+    public void expiresPages() throws InterruptedException {
+        SearchResultCache shortLived = new SearchResultCache(3, 10, 1L);
+        shortLived.put(TENANT, "%a%", 0, 10, List.of("u1"), shortLived.epoch());
+        Thread.sleep(10L);
+
+        assertNull(shortLived.get(TENANT, "%a%", 0, 10));
+        assertEquals(0, shortLived.size());
+    }
+
+    @Test
+    public void disabledCacheKeepsNothing() {
+        SearchResultCache disabled = new SearchResultCache(0, 10, 60000L);
+        disabled.put(TENANT, "%a%", 0, 10, List.of("u1"), disabled.epoch());
+
+        assertFalse(disabled.isCacheable(10));
+        assertEquals(0, disabled.size());
+    }
+}
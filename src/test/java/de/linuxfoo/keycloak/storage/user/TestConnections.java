@@ -0,0 +1,152 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+
+package de.linuxfoo.keycloak.storage.user;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * {@link TestEntityManager.ConnectionSource} whose connections record the
+ * statements executed on them, with one parameter row per execution or
+ * batch entry, and report one changed row per parameter row.
+ */
+public class TestConnections implements TestEntityManager.ConnectionSource {
+    private final List<Execution> executions =
+        Collections.synchronizedList(new ArrayList<Execution>());
+    private Consumer<String> prepareHandler = sql -> {};
+
+    /**
+     * A statement as executed, with its parameter rows.
+     */
+    public static final class Execution {
+        private final String sql;
+        private final List<List<Object>> rows;
+
+        private Execution(String sql, List<List<Object>> rows) {
+            this.sql = sql;
+            this.rows = rows;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public List<List<Object>> getRows() {
+            return rows;
+        }
+    }
+
+    /**
+     * Runs the handler with the SQL of every statement being prepared,
+     * before the statement is returned.
+     */
+    public TestConnections onPrepare(Consumer<String> handler) {
+        prepareHandler = handler;
+
+        return this;
+    }
+
+    public List<Execution> getExecutions() {
+        synchronized (executions) {
+            return new ArrayList<Execution>(executions);
+        }
+    }
+
+    @Override
+    public Connection take() {
+        return (Connection)Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { Connection.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "prepareStatement":
+                        prepareHandler.accept((String)args[0]);
+                        return statement((String)args[0]);
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        throw new UnsupportedOperationException(
+                            method.getName()
+                        );
+                }
+            }
+        );
+    }
+
+    @Override
+    public void release(Connection connection) {
+    }
+
+    private PreparedStatement statement(String sql) {
+        Map<Integer, Object> parameters = new TreeMap<Integer, Object>();
+        List<List<Object>> batch = new ArrayList<List<Object>>();
+
+        return (PreparedStatement)Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { PreparedStatement.class },
+            (proxy, method, args) -> {
+                if (method.getName().startsWith("set") &&
+                    args.length == 2 && args[0] instanceof Integer) {
+                    parameters.put((Integer)args[0], args[1]);
+
+                    return null;
+                }
+
+                switch (method.getName()) {
+                    case "addBatch":
+                        batch.add(new ArrayList<Object>(parameters.values()));
+                        parameters.clear();
+                        return null;
+                    case "executeBatch":
+                        executions.add(
+                            new Execution(sql, new ArrayList<List<Object>>(batch))
+                        );
+                        int[] counts = new int[batch.size()];
+                        Arrays.fill(counts, 1);
+                        batch.clear();
+                        return counts;
+                    case "executeUpdate":
+                        executions.add(new Execution(
+                            sql,
+                            List.of(new ArrayList<Object>(parameters.values()))
+                        ));
+                        return 1;
+                    case "close":
+                        return null;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        throw new UnsupportedOperationException(
+                            method.getName()
+                        );
+                }
+            }
+        );
+    }
+}
@@ -0,0 +1,272 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+
+package de.linuxfoo.keycloak.storage.user;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.NoResultException;
+import jakarta.persistence.PersistenceException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.hibernate.Session;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.jdbc.Work;
+
+/**
+ * Stand-in for the {@link EntityManager} of the user store. Named queries
+ * are answered by handlers registered per query name; the entities they
+ * return count as managed until {@link EntityManager#clear()}, and
+ * {@link EntityManager#flush()} passes the managed entities to the flush
+ * handler. JDBC work runs on connections from a {@link ConnectionSource}.
+ */
+public class TestEntityManager {
+    private final Map<String, Function<Call, List<?>>> queries =
+        new HashMap<String, Function<Call, List<?>>>();
+    private final Set<Object> managed =
+        Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    private final List<Call> calls = new ArrayList<Call>();
+    private final List<Object> persisted = new ArrayList<Object>();
+    private final List<Object> removed = new ArrayList<Object>();
+    private final Session session;
+    private Consumer<Object> flushHandler = entity -> {};
+    private ConnectionSource connections;
+
+    /**
+     * Provides the connection for a unit of JDBC work and takes it back.
+     */
+    public interface ConnectionSource {
+        Connection take() throws SQLException;
+
+        void release(Connection connection) throws SQLException;
+    }
+
+    /**
+     * A named query as executed, with its bound parameters.
+     */
+    public static final class Call {
+        private final String name;
+        private final Map<String, Object> parameters =
+            new HashMap<String, Object>();
+        private int first;
+        private int max = Integer.MAX_VALUE;
+
+        private Call(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Object get(String parameter) {
+            return parameters.get(parameter);
+        }
+
+        public int getFirst() {
+            return first;
+        }
+
+        public int getMax() {
+            return max;
+        }
+    }
+
+    public TestEntityManager() {
+        session = (Session)Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { Session.class },
+            (proxy, method, args) -> invoke(proxy, method, args)
+        );
+    }
+
+    public TestEntityManager onQuery(
+        String name,
+        Function<Call, List<?>> handler
+    ) {
+        queries.put(name, handler);
+
+        return this;
+    }
+
+    public TestEntityManager onFlush(Consumer<Object> handler) {
+        flushHandler = handler;
+
+        return this;
+    }
+
+    public TestEntityManager withConnections(ConnectionSource connections) {
+        this.connections = connections;
+
+        return this;
+    }
+
+    /**
+     * Makes the entity managed, as if it had been loaded.
+     */
+    public <T> T manage(T entity) {
+        managed.add(entity);
+
+        return entity;
+    }
+
+    public EntityManager get() {
+        return session;
+    }
+
+    public List<Call> getCalls() {
+        return calls;
+    }
+
+    public List<Object> getPersisted() {
+        return persisted;
+    }
+
+    public List<Object> getRemoved() {
+        return removed;
+    }
+
+    private Object invoke(Object proxy, Method method, Object[] args)
+    throws SQLException {
+        switch (method.getName()) {
+            case "createNamedQuery":
+                return query((String)args[0]);
+            case "contains":
+                return managed.contains(args[0]);
+            case "persist":
+                persisted.add(args[0]);
+                managed.add(args[0]);
+                return null;
+            case "remove":
+                removed.add(args[0]);
+                managed.remove(args[0]);
+                return null;
+            case "flush":
+                for (Object entity : new ArrayList<Object>(managed)) {
+                    flushHandler.accept(entity);
+                }
+                return null;
+            case "clear":
+                managed.clear();
+                return null;
+            case "unwrap":
+                return proxy;
+            case "doWork":
+                work(connection -> {
+                    ((Work)args[0]).execute(connection);
+                    return null;
+                });
+                return null;
+            case "doReturningWork":
+                return work((ReturningWork<?>)args[0]);
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "TestEntityManager@" +
+                    Integer.toHexString(System.identityHashCode(proxy));
+            default:
+                throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    private <T> T work(ReturningWork<T> work) throws SQLException {
+        if (connections == null) {
+            throw new UnsupportedOperationException("no connections");
+        }
+
+        Connection connection = connections.take();
+
+        try {
+            return work.execute(connection);
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        } finally {
+            connections.release(connection);
+        }
+    }
+
+    private Object query(String name) {
+        Call call = new Call(name);
+
+        return Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { jakarta.persistence.TypedQuery.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "setParameter":
+                        call.parameters.put((String)args[0], args[1]);
+                        return proxy;
+                    case "setFirstResult":
+                        call.first = (Integer)args[0];
+                        return proxy;
+                    case "setMaxResults":
+                        call.max = (Integer)args[0];
+                        return proxy;
+                    case "setHint":
+                        return proxy;
+                    case "getResultList":
+                        return execute(call);
+                    case "getResultStream":
+                        return execute(call).stream();
+                    case "getSingleResult":
+                        List<?> result = execute(call);
+
+                        if (result.isEmpty()) {
+                            throw new NoResultException(name);
+                        }
+
+                        return result.get(0);
+                    default:
+                        throw new UnsupportedOperationException(
+                            method.getName()
+                        );
+                }
+            }
+        );
+    }
+
+    private List<?> execute(Call call) {
+        Function<Call, List<?>> handler = queries.get(call.getName());
+
+        if (handler == null) {
+            throw new UnsupportedOperationException(call.getName());
+        }
+
+        calls.add(call);
+        List<?> result = handler.apply(call);
+
+        for (Object row : result) {
+            if (!(row instanceof Object[]) && !(row instanceof Number) &&
+                !(row instanceof String)) {
+                managed.add(row);
+            }
+        }
+
+        return result;
+    }
+}
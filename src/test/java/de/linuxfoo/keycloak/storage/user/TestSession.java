@@ -0,0 +1,228 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+
+package de.linuxfoo.keycloak.storage.user;
+
+import jakarta.persistence.EntityManager;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmProvider;
+
+/**
+ * Stand-in for a {@link KeycloakSession} that supports what the provider
+ * needs: session attributes, the user store's {@link EntityManager},
+ * other providers registered with {@link #withProvider}, and prepare and
+ * after-completion transactions, which run on {@link #commit()} or
+ * {@link #rollback()}.
+ */
+public class TestSession {
+    private final Map<String, Object> attributes =
+        new HashMap<String, Object>();
+    private final Map<Class<?>, Object> providers =
+        new HashMap<Class<?>, Object>();
+    private final List<KeycloakTransaction> prepare =
+        new ArrayList<KeycloakTransaction>();
+    private final List<KeycloakTransaction> afterCompletion =
+        new ArrayList<KeycloakTransaction>();
+    private final TestEntityManager em;
+    private final KeycloakSessionFactory factory;
+    private final KeycloakSession session;
+    private boolean active;
+    private boolean rollbackOnly;
+
+    public TestSession() {
+        this(null, null);
+    }
+
+    public TestSession(TestEntityManager em, KeycloakSessionFactory factory) {
+        this.em = em;
+        this.factory = factory;
+
+        KeycloakTransactionManager transactionManager =
+            (KeycloakTransactionManager)Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] { KeycloakTransactionManager.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "enlistPrepare":
+                            enlist(prepare, (KeycloakTransaction)args[0]);
+                            return null;
+                        case "enlistAfterCompletion":
+                            enlist(afterCompletion, (KeycloakTransaction)args[0]);
+                            return null;
+                        case "begin":
+                            active = true;
+                            return null;
+                        case "isActive":
+                            return active;
+                        case "setRollbackOnly":
+                            rollbackOnly = true;
+                            return null;
+                        case "getRollbackOnly":
+                            return rollbackOnly;
+                        case "commit":
+                            commit();
+                            return null;
+                        case "rollback":
+                            rollback();
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(
+                                method.getName()
+                            );
+                    }
+                }
+            );
+
+        session = (KeycloakSession)Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { KeycloakSession.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getAttribute":
+                        return attributes.get((String)args[0]);
+                    case "setAttribute":
+                        attributes.put((String)args[0], args[1]);
+                        return null;
+                    case "removeAttribute":
+                        return attributes.remove((String)args[0]);
+                    case "getTransactionManager":
+                        return transactionManager;
+                    case "getProvider":
+                        return getProvider((Class<?>)args[0]);
+                    case "realms":
+                        return getProvider(RealmProvider.class);
+                    case "getKeycloakSessionFactory":
+                        return factory;
+                    case "close":
+                        close();
+                        return null;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "TestSession@" +
+                            Integer.toHexString(System.identityHashCode(proxy));
+                    default:
+                        throw new UnsupportedOperationException(
+                            method.getName()
+                        );
+                }
+            }
+        );
+    }
+
+    /**
+     * Makes {@code provider} the session's provider of {@code type}.
+     */
+    public <T> TestSession withProvider(Class<T> type, T provider) {
+        providers.put(type, provider);
+
+        return this;
+    }
+
+    public KeycloakSession get() {
+        return session;
+    }
+
+    /**
+     * Runs the prepare transactions, flushes the entity manager and runs
+     * the after-completion transactions, as Keycloak does on commit.
+     */
+    public void commit() {
+        for (KeycloakTransaction transaction : prepare) {
+            transaction.commit();
+        }
+
+        prepare.clear();
+
+        if (em != null) {
+            em.get().flush();
+        }
+
+        for (KeycloakTransaction transaction : afterCompletion) {
+            transaction.commit();
+        }
+
+        afterCompletion.clear();
+        active = false;
+    }
+
+    public void rollback() {
+        for (KeycloakTransaction transaction : prepare) {
+            transaction.rollback();
+        }
+
+        prepare.clear();
+
+        for (KeycloakTransaction transaction : afterCompletion) {
+            transaction.rollback();
+        }
+
+        afterCompletion.clear();
+        active = false;
+    }
+
+    /**
+     * Completes an active transaction like closing a Keycloak session.
+     */
+    public void close() {
+        if (!active) {
+            return;
+        }
+
+        if (rollbackOnly) {
+            rollback();
+        } else {
+            commit();
+        }
+    }
+
+    private Object getProvider(Class<?> type) {
+        if (type == JpaConnectionProvider.class && em != null) {
+            return (JpaConnectionProvider)Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] { JpaConnectionProvider.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getEntityManager")) {
+                        return em.get();
+                    }
+
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            );
+        }
+
+        return providers.get(type);
+    }
+
+    private static void enlist(
+        List<KeycloakTransaction> transactions,
+        KeycloakTransaction transaction
+    ) {
+        transaction.begin();
+        transactions.add(transaction);
+    }
+}
@@ -0,0 +1,84 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+
+package de.linuxfoo.keycloak.storage.user;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Stand-in for the {@link KeycloakSessionFactory}, creating a
+ * {@link TestSession} with a new {@link TestEntityManager} for every
+ * session, as background jobs of the provider do.
+ */
+public class TestSessionFactory {
+    private final Map<Class<?>, Object> providers =
+        new HashMap<Class<?>, Object>();
+    private final Supplier<TestEntityManager> entityManagers;
+    private final KeycloakSessionFactory factory;
+
+    public TestSessionFactory(Supplier<TestEntityManager> entityManagers) {
+        this.entityManagers = entityManagers;
+        this.factory = (KeycloakSessionFactory)Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { KeycloakSessionFactory.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "create":
+                        return create().get();
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "TestSessionFactory@" +
+                            Integer.toHexString(System.identityHashCode(proxy));
+                    default:
+                        throw new UnsupportedOperationException(
+                            method.getName()
+                        );
+                }
+            }
+        );
+    }
+
+    /**
+     * Makes {@code provider} the provider of {@code type} of every session
+     * created from now on.
+     */
+    public <T> TestSessionFactory withProvider(Class<T> type, T provider) {
+        providers.put(type, provider);
+
+        return this;
+    }
+
+    public KeycloakSessionFactory get() {
+        return factory;
+    }
+
+    @SuppressWarnings("unchecked")
+    public TestSession create() {
+        TestSession session = new TestSession(entityManagers.get(), factory);
+
+        providers.forEach((type, provider) ->
+            session.withProvider((Class<Object>)type, provider));
+
+        return session;
+    }
+}
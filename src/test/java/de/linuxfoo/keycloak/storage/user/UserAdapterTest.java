@@ -0,0 +1,203 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+
+package de.linuxfoo.keycloak.storage.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
+
+/**
+ * Indexed attributes of a {@link UserAdapter}, with "employeeNumber"
+ * indexed and the user's other attributes in a map standing in for
+ * Keycloak's federated storage.
+ */
+public class UserAdapterTest {
+    private static final String REALM = "test";
+    private static final String ATTRIBUTE = "employeeNumber";
+    private final MultivaluedHashMap<String, String> federated =
+        new MultivaluedHashMap<String, String>();
+    private final ComponentModel model = new ComponentModel();
+    private final TestEntityManager em = new TestEntityManager();
+    private UserCacheInvalidator invalidator;
+    private UserEntity entity;
+    private UserAdapter user;
+
+    @BeforeEach
+    public void setUp() {
+        model.setId("component");
+        model.setName("test");
+        model.put("readOnly", "false");
+        model.put(UserStorageTestProvider.INDEXED_ATTRIBUTES, ATTRIBUTE);
+
+        entity = new UserEntity();
+        entity.setId("u1");
+        entity.setRealm(REALM);
+        entity.setUsername("user1");
+        entity.setAttributes(new HashSet<UserAttributeEntity>());
+        em.manage(entity);
+
+        TestSession session = new TestSession(em, null).withProvider(
+            UserFederatedStorageProvider.class,
+            federatedStorage()
+        );
+        invalidator = new UserCacheInvalidator(
+            new UserCache(0, 0L, 0L),
+            new SearchResultCache(0, 0, 0L),
+            new LocalInvalidationChannel(),
+            3600000L,
+            500
+        );
+        user = new UserAdapter(
+            session.get(),
+            realm(),
+            model,
+            entity,
+            invalidator,
+            null,
+            new GroupResolver(0, 0L),
+            new SqlTracer("test", -1L, 0.0)
+        );
+    }
+
+    @AfterEach
+    public void tearDown() {
+        invalidator.close();
+    }
+
+    @Test
+    public void fallsBackToFederatedValuesWithoutRows() {
+        federated.add(ATTRIBUTE, "42");
+
+        assertEquals("42", user.getFirstAttribute(ATTRIBUTE));
+        assertEquals(List.of("42"), values());
+        assertEquals(List.of("42"), user.getAttributes().get(ATTRIBUTE));
+    }
+
+    @Test
+    public void rowsTakePrecedenceOverFederatedValues() {
+        federated.add(ATTRIBUTE, "42");
+        entity.getAttributes().add(attribute("7"));
+
+        assertEquals("7", user.getFirstAttribute(ATTRIBUTE));
+        assertEquals(List.of("7"), values());
+        assertEquals(List.of("7"), user.getAttributes().get(ATTRIBUTE));
+    }
+
+    @Test
+    public void writeMovesValueToUserDatabase() {
+        federated.add(ATTRIBUTE, "42");
+        user.setSingleAttribute(ATTRIBUTE, "43");
+
+        assertNull(federated.get(ATTRIBUTE));
+        assertEquals(List.of("43"), values());
+        assertEquals(
+            List.of("43"),
+            entity.getAttributes().stream()
+                .map(UserAttributeEntity::getValue)
+                .collect(Collectors.toList())
+        );
+    }
+
+    @Test
+    public void rewriteKeepsUnchangedRows() {
+        UserAttributeEntity kept = attribute("7");
+        entity.getAttributes().add(kept);
+        entity.getAttributes().add(attribute("8"));
+        user.setAttribute(ATTRIBUTE, List.of("7", "9"));
+
+        assertEquals(2, entity.getAttributes().size());
+        assertEquals(
+            true,
+            entity.getAttributes().stream().anyMatch(a -> a == kept)
+        );
+        assertEquals(
+            List.of("7", "9"),
+            values().stream().sorted().collect(Collectors.toList())
+        );
+    }
+
+    private List<String> values() {
+        return user.getAttributeStream(ATTRIBUTE).collect(Collectors.toList());
+    }
+
+    private UserAttributeEntity attribute(String value) {
+        UserAttributeEntity attribute = new UserAttributeEntity();
+        attribute.setId(value);
+        attribute.setRealm(REALM);
+        attribute.setUser(entity);
+        attribute.setName(ATTRIBUTE);
+        attribute.setValue(value);
+
+        return attribute;
+    }
+
+    private RealmModel realm() {
+        return (RealmModel)Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { RealmModel.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getId":
+                    case "getName":
+                        return REALM;
+                    default:
+                        throw new UnsupportedOperationException(
+                            method.getName()
+                        );
+                }
+            }
+        );
+    }
+
+    @SuppressWarnings("unchecked")
+    private UserFederatedStorageProvider federatedStorage() {
+        return (UserFederatedStorageProvider)Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { UserFederatedStorageProvider.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getAttributes":
+                        return new MultivaluedHashMap<String, String>(federated);
+                    case "setSingleAttribute":
+                        federated.putSingle((String)args[2], (String)args[3]);
+                        return null;
+                    case "setAttribute":
+                        federated.put((String)args[2], (List<String>)args[3]);
+                        return null;
+                    case "removeAttribute":
+                        federated.remove((String)args[2]);
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(
+                            method.getName()
+                        );
+                }
+            }
+        );
+    }
+}
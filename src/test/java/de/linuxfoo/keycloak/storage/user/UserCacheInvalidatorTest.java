@@ -0,0 +1,153 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+
+package de.linuxfoo.keycloak.storage.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Two nodes, each with its own {@link UserCache} and
+ * {@link UserCacheInvalidator}, connected through a
+ * {@link LocalInvalidationChannel}.
+ */
+public class UserCacheInvalidatorTest {
+    private static final String REALM = "test";
+    private static final int BATCH_SIZE = 500;
+    private final List<UserInvalidationEvent> published =
+        new ArrayList<UserInvalidationEvent>();
+    private UserCache cacheA;
+    private UserCache cacheB;
+    private UserCacheInvalidator nodeA;
+    private UserCacheInvalidator nodeB;
+
+    @BeforeEach
+    public void setUp() {
+        LocalInvalidationChannel local = new LocalInvalidationChannel();
+        InvalidationChannel channel = new InvalidationChannel() {
+            @Override
+            public void publish(UserInvalidationEvent event) {
+                synchronized (published) {
+                    published.add(event);
+                }
+
+                local.publish(event);
+            }
+
+            @Override
+            public void subscribe(Consumer<UserInvalidationEvent> listener) {
+                local.subscribe(listener);
+            }
+        };
+
+        cacheA = new UserCache(10000, 60000L, 60000L);
+        cacheB = new UserCache(10000, 60000L, 60000L);
+        // flushed explicitly by the tests
+        nodeA = new UserCacheInvalidator(
+            cacheA,
+            new SearchResultCache(0, 0, 0L),
+            channel,
+            3600000L,
+            BATCH_SIZE
+        );
+        nodeB = new UserCacheInvalidator(
+            cacheB,
+            new SearchResultCache(0, 0, 0L),
+            channel,
+            3600000L,
+            BATCH_SIZE
+        );
+    }
+
+    @AfterEach
+    public void tearDown() {
+        nodeA.close();
+        nodeB.close();
+    }
+
+    @Test
+    public void writeOnOneNodeEvictsOtherNode() {
+        cache("1");
+        TestSession session = new TestSession();
+
+        nodeA.invalidate(session.get(), "1");
+
+        assertNull(cacheA.getById(REALM, "1"));
+        assertNotNull(
+            cacheB.getById(REALM, "1"),
+            "evicted on the other node before commit"
+        );
+
+        session.commit();
+        nodeA.flush();
+
+        assertNull(cacheB.getById(REALM, "1"));
+        assertEquals(1, published.size());
+    }
+
+    @Test
+    public void burstOfWritesIsBatched() {
+        int users = 2 * BATCH_SIZE + 1;
+
+        for (int i = 0; i < users; i++) {
+            cache(Integer.toString(i));
+        }
+
+        for (int i = 0; i < users; i++) {
+            TestSession session = new TestSession();
+            nodeA.invalidate(session.get(), Integer.toString(i));
+            session.commit();
+        }
+
+        assertEquals(0, published.size(), "published before flush");
+
+        nodeA.flush();
+
+        assertEquals(3, published.size());
+        assertEquals(0, cacheB.size());
+    }
+
+    @Test
+    public void rollbackIsNotPublished() {
+        cache("1");
+        TestSession session = new TestSession();
+
+        nodeA.invalidate(session.get(), "1");
+        session.rollback();
+        nodeA.flush();
+
+        assertEquals(0, published.size());
+        assertNotNull(cacheB.getById(REALM, "1"));
+    }
+
+    private void cache(String id) {
+        UserEntity entity = new UserEntity();
+        entity.setId(id);
+        entity.setRealm(REALM);
+        entity.setUsername("user" + id);
+
+        cacheA.put(UserSnapshot.of(entity), cacheA.epoch());
+        cacheB.put(UserSnapshot.of(entity), cacheB.epoch());
+    }
+}
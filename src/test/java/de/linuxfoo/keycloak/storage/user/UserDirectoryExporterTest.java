@@ -0,0 +1,133 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+
+package de.linuxfoo.keycloak.storage.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Exports five users in chunks of two from a {@link TestEntityManager}
+ * that pages {@code getUsersAfter} by id.
+ */
+public class UserDirectoryExporterTest {
+    private static final String REALM = "test";
+    private final List<UserEntity> users = new ArrayList<UserEntity>();
+    private TestEntityManager em;
+
+    @BeforeEach
+    public void setUp() {
+        for (int i = 1; i <= 5; i++) {
+            UserEntity user = new UserEntity();
+            user.setId("u" + i);
+            user.setRealm(REALM);
+            user.setUsername("user" + i);
+            user.setEmail("user" + i + "@example.org");
+            user.setEmailVerified(true);
+            user.setPasswordHash("$1$secret");
+            user.setFirstName("First, \"" + i + "\"");
+            users.add(user);
+        }
+
+        em = new TestEntityManager()
+            .onQuery("getUsersAfter", call -> users.stream()
+                .filter(u -> u.getRealm().equals(call.get("realm")))
+                .filter(u -> u.getId().compareTo((String)call.get("after")) > 0)
+                .limit(call.getMax())
+                .collect(Collectors.toList()))
+            .onQuery("getClientRoleNamesOfUsers", call -> roles(call, "client"))
+            .onQuery("getRealmRoleNamesOfUsers", call -> roles(call, "realm"));
+    }
+
+    @Test
+    public void pagesByLastIdOfPreviousChunk() throws Exception {
+        long rows = new UserDirectoryExporter(2, new SqlTracer("test", -1L, 0.0))
+            .export(
+                em.get(),
+                REALM,
+                new ByteArrayOutputStream(),
+                UserDirectoryExporter.Format.NDJSON
+            );
+
+        List<TestEntityManager.Call> pages = em.getCalls().stream()
+            .filter(call -> call.getName().equals("getUsersAfter"))
+            .collect(Collectors.toList());
+
+        assertEquals(5, rows);
+        assertEquals(
+            List.of("", "u2", "u4", "u5"),
+            pages.stream()
+                .map(call -> call.get("after"))
+                .collect(Collectors.toList())
+        );
+        assertTrue(pages.stream().allMatch(call -> call.getMax() == 2));
+        // and one role query per table for each of the three chunks
+        assertEquals(4 + 3 * 2, em.getCalls().size());
+    }
+
+    @Test
+    public void writesOneJsonObjectPerUserWithoutPasswordHash()
+    throws Exception {
+        String out = export(UserDirectoryExporter.Format.NDJSON);
+        String[] lines = out.split("\n");
+
+        assertEquals(5, lines.length);
+        assertTrue(lines[0].startsWith("{\"id\":\"u1\",\"username\":\"user1\""));
+        assertTrue(lines[0].contains("\"clientRoles\":[\"client-u1\"]"));
+        assertTrue(lines[0].contains("\"realmRoles\":[\"realm-u1\"]"));
+        assertFalse(out.contains("secret"));
+    }
+
+    @Test
+    public void writesCsvWithHeaderAndQuotedValues() throws Exception {
+        String out = export(UserDirectoryExporter.Format.CSV);
+        String[] lines = out.split("\r?\n");
+
+        assertEquals(6, lines.length);
+        assertTrue(lines[0].startsWith("id,username,email,"));
+        assertTrue(lines[1].contains("\"First, \"\"1\"\"\""));
+        assertFalse(out.contains("secret"));
+    }
+
+    private String export(UserDirectoryExporter.Format format)
+    throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new UserDirectoryExporter(2, new SqlTracer("test", -1L, 0.0))
+            .export(em.get(), REALM, out, format);
+
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object[]> roles(TestEntityManager.Call call, String prefix) {
+        List<Object[]> rows = new ArrayList<Object[]>();
+
+        for (String id : (List<String>)call.get("ids")) {
+            rows.add(new Object[] { id, prefix + "-" + id });
+        }
+
+        return rows;
+    }
+}
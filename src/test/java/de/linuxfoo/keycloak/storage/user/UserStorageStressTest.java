@@ -0,0 +1,732 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+
+package de.linuxfoo.keycloak.storage.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import jakarta.persistence.PersistenceException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import org.apache.commons.codec.digest.Crypt;
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.StorageId;
+
+/**
+ * Concurrency stress test of the provider and the state its factory
+ * shares between sessions: the {@link UserCache} with its
+ * {@link UserCacheInvalidator}, the {@link CircuitBreaker} of the
+ * {@link UserDatabaseGuard} and the {@link LastLoginTracker}. The user
+ * database is an embedded H2 database.
+ *
+ * Two nodes, linked by a {@link LocalInvalidationChannel}, serve user
+ * lookups, searches and password checks through
+ * {@link UserStorageTestProvider}, with its {@link SearchResultCache};
+ * writes change the first name of a user through {@link UserAdapter} on
+ * the first node. Hibernate's flush of the changed entity is emulated
+ * with a JDBC update. The test checks that
+ * <ul>
+ * <li>every writer reads its own write back,</li>
+ * <li>no lookup or search on the writing node returns a first name older
+ * than one committed before it started,</li>
+ * <li>once the invalidations have been flushed, neither node caches a
+ * stale user,</li>
+ * <li>every login the tracker accepted reaches the database,</li>
+ * <li>the circuit breaker never opens.</li>
+ * </ul>
+ *
+ * The workload runs on 1 to N platform threads, N being the number of
+ * cores, and on virtual threads where the JVM supports them, and logs
+ * throughput and contention per run. The tests are tagged "stress" and
+ * only run with {@code mvn test -Pstress}; the duration of each run is
+ * set with {@code -Dstress.durationMillis} (default 300).
+ */
+@Tag("stress")
+public class UserStorageStressTest {
+    private static final Logger logger = Logger
+        .getLogger(UserStorageStressTest.class);
+    private static final String TENANT = "stress";
+    private static final String PASSWORD = "secret";
+    private static final int USERS = 2000;
+    private static final int CONNECTIONS = 16;
+    private static final int TRACKED_LOGINS = 64;
+    private static final int WRITE_PERCENT = 5;
+    private static final int LOGIN_PERCENT = 20;
+    private static final int SEARCH_PERCENT = 10;
+    private static final long DURATION_MILLIS =
+        Long.getLong("stress.durationMillis", 300L);
+    private static final AtomicLong databases = new AtomicLong();
+    private final Queue<String> failures = new ConcurrentLinkedQueue<String>();
+    private final LongAdder poolWaitNanos = new LongAdder();
+    private final ComponentModel model = new ComponentModel();
+    private Connection keepAlive;
+    private BlockingQueue<Connection> pool;
+    private RealmModel realm;
+    private Node nodeA;
+    private Node nodeB;
+    private AtomicLongArray committed;
+    private AtomicLongArray loggedIn;
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        String url = "jdbc:h2:mem:stress" + databases.incrementAndGet();
+        keepAlive = DriverManager.getConnection(url);
+
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute(
+                "CREATE TABLE users (" +
+                "id VARCHAR(255) PRIMARY KEY, " +
+                "realm VARCHAR(255) NOT NULL, " +
+                "username VARCHAR(255), " +
+                "email VARCHAR(255), " +
+                "password_hash VARCHAR(255), " +
+                "firstname VARCHAR(255), " +
+                "last_login BIGINT)"
+            );
+        }
+
+        try (PreparedStatement ps = keepAlive.prepareStatement(
+            "INSERT INTO users " +
+            "(id, realm, username, email, password_hash, firstname) " +
+            "VALUES (?, ?, ?, ?, ?, ?)"
+        )) {
+            String hash = Crypt.crypt(PASSWORD, "$1$stress");
+
+            for (int i = 0; i < USERS; i++) {
+                ps.setString(1, Integer.toString(i));
+                ps.setString(2, TENANT);
+                ps.setString(3, "user" + i);
+                ps.setString(4, "user" + i + "@example.org");
+                ps.setString(5, hash);
+                ps.setString(6, "0");
+                ps.addBatch();
+            }
+
+            ps.executeBatch();
+        }
+
+        pool = new ArrayBlockingQueue<Connection>(CONNECTIONS);
+
+        for (int i = 0; i < CONNECTIONS; i++) {
+            pool.add(DriverManager.getConnection(url));
+        }
+
+        model.setId("stress-component");
+        model.setName("stress");
+        model.setProviderId(UserStorageTestProviderFactory.PROVIDER_ID);
+        model.put("readOnly", "false");
+        model.put(UserStorageTestProvider.TENANT, TENANT);
+        model.put(SqlTracer.THRESHOLD, "-1");
+        realm = (RealmModel)Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { RealmModel.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getId":
+                    case "getName":
+                    case "toString":
+                        return TENANT;
+                    case "hashCode":
+                        return TENANT.hashCode();
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        throw new UnsupportedOperationException(
+                            method.getName()
+                        );
+                }
+            }
+        );
+
+        LocalInvalidationChannel channel = new LocalInvalidationChannel();
+        nodeA = new Node(channel);
+        nodeB = new Node(channel);
+        committed = new AtomicLongArray(USERS);
+        loggedIn = new AtomicLongArray(USERS);
+    }
+
+    @AfterEach
+    public void tearDown() throws SQLException {
+        nodeA.close();
+        nodeB.close();
+
+        for (Connection connection : pool) {
+            connection.close();
+        }
+
+        keepAlive.close();
+    }
+
+    @Test
+    public void platformThreads() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        if (threads.isThreadContentionMonitoringSupported()) {
+            threads.setThreadContentionMonitoringEnabled(true);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> steps = new ArrayList<Integer>();
+
+        for (int n = 1; n < cores; n *= 2) {
+            steps.add(n);
+        }
+
+        steps.add(cores);
+        // let the JIT settle before the single threaded run is measured
+        run("warm-up", cores, Executors.newFixedThreadPool(cores));
+
+        for (int n : steps) {
+            run("platform threads", n, Executors.newFixedThreadPool(n));
+        }
+    }
+
+    @Test
+    public void virtualThreads() throws Exception {
+        ExecutorService executor;
+
+        try {
+            executor = (ExecutorService)Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor")
+                .invoke(null);
+        } catch (NoSuchMethodException e) {
+            executor = null;
+        }
+
+        assumeTrue(executor != null, "virtual threads need Java 21");
+
+        int workers = 16 * Runtime.getRuntime().availableProcessors();
+        run("virtual threads", workers, executor);
+    }
+
+    private void run(String kind, int workers, ExecutorService executor)
+    throws Exception {
+        LongAdder lookups = new LongAdder();
+        LongAdder searches = new LongAdder();
+        LongAdder logins = new LongAdder();
+        LongAdder writes = new LongAdder();
+        LongAdder blockedCount = new LongAdder();
+        LongAdder blockedMillis = new LongAdder();
+        long deadline = System.currentTimeMillis() + DURATION_MILLIS;
+        long start = System.nanoTime();
+        poolWaitNanos.reset();
+
+        try {
+            for (int w = 0; w < workers; w++) {
+                final int worker = w;
+
+                executor.execute(() -> {
+                    try {
+                        work(
+                            worker,
+                            workers,
+                            deadline,
+                            lookups,
+                            searches,
+                            logins,
+                            writes
+                        );
+                    } catch (Throwable e) {
+                        failures.add(kind + ": " + e);
+                    } finally {
+                        ThreadInfo info = ManagementFactory
+                            .getThreadMXBean()
+                            .getThreadInfo(Thread.currentThread().getId());
+
+                        if (info != null) {
+                            blockedCount.add(info.getBlockedCount());
+                            blockedMillis.add(Math.max(0, info.getBlockedTime()));
+                        }
+                    }
+                });
+            }
+
+            executor.shutdown();
+            assertTrue(
+                executor.awaitTermination(
+                    DURATION_MILLIS + 60000L,
+                    TimeUnit.MILLISECONDS
+                ),
+                kind + " did not finish"
+            );
+        } finally {
+            executor.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long operations = lookups.sum() + searches.sum() + logins.sum() +
+            writes.sum();
+
+        logger.infof(
+            "%s, %d workers: %.0f ops/s (%d lookups, %d searches, %d logins, " +
+            "%d writes), %d ms waiting for connections, " +
+            "blocked on monitors %d times for %d ms",
+            kind,
+            workers,
+            operations / seconds,
+            lookups.sum(),
+            searches.sum(),
+            logins.sum(),
+            writes.sum(),
+            TimeUnit.NANOSECONDS.toMillis(poolWaitNanos.sum()),
+            blockedCount.sum(),
+            blockedMillis.sum()
+        );
+
+        assertTrue(operations > 0, kind + " did nothing");
+        assertEquals(
+            0,
+            failures.size(),
+            kind + " failed: " + String.join("; ", failures)
+        );
+
+        nodeA.invalidator.flush();
+        assertCurrent(nodeA, "node A");
+        assertCurrent(nodeB, "node B");
+        assertLoginsWritten();
+        assertEquals(
+            CircuitBreaker.State.CLOSED,
+            nodeA.guard.getBreaker().getState()
+        );
+        assertEquals(
+            CircuitBreaker.State.CLOSED,
+            nodeB.guard.getBreaker().getState()
+        );
+    }
+
+    private void work(
+        int worker,
+        int workers,
+        long deadline,
+        LongAdder lookups,
+        LongAdder searches,
+        LongAdder logins,
+        LongAdder writes
+    ) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        while (System.currentTimeMillis() < deadline) {
+            int user = random.nextInt(USERS);
+            int operation = random.nextInt(100);
+            Node node = random.nextBoolean() ? nodeA : nodeB;
+
+            if (operation < WRITE_PERCENT && user % workers == worker) {
+                write(user, committed.get(user) + 1);
+                writes.increment();
+            } else if (operation < WRITE_PERCENT + LOGIN_PERCENT) {
+                login(node, user);
+                logins.increment();
+            } else if (operation <
+                WRITE_PERCENT + LOGIN_PERCENT + SEARCH_PERCENT) {
+                search(node, user);
+                searches.increment();
+            } else {
+                lookup(node, user);
+                lookups.increment();
+            }
+        }
+    }
+
+    /**
+     * Looks the user up and checks that the node that writes does not
+     * return a first name older than the one committed before; the other
+     * node may lag until the invalidations have been flushed.
+     */
+    private void lookup(Node node, int user) {
+        long before = committed.get(user);
+        long seen = firstName(node, user);
+
+        if (node == nodeA && seen < before) {
+            failures.add(
+                "user " + user + ": read " + seen +
+                " after " + before + " was committed"
+            );
+        }
+    }
+
+    /**
+     * Searches the user by username, taking the first page of one user,
+     * which is the user itself, and checks it like a lookup.
+     */
+    private void search(Node node, int user) {
+        long before = committed.get(user);
+        TestSession session = node.factory.create();
+        List<UserModel> found = node.provider(session)
+            .searchForUserStream(
+                realm,
+                Map.of(UserModel.SEARCH, "user" + user),
+                0,
+                1
+            )
+            .collect(Collectors.toList());
+        session.commit();
+
+        if (found.size() != 1 ||
+            !found.get(0).getUsername().equals("user" + user)) {
+            failures.add("user " + user + ": search found " + found.size());
+            return;
+        }
+
+        long seen = Long.parseLong(found.get(0).getFirstAttribute("firstName"));
+
+        if (node == nodeA && seen < before) {
+            failures.add(
+                "user " + user + ": search read " + seen +
+                " after " + before + " was committed"
+            );
+        }
+    }
+
+    /**
+     * Checks the user's password and remembers the last login the node's
+     * tracker accepted, which must eventually be written.
+     */
+    private void login(Node node, int user) {
+        TestSession session = node.factory.create();
+        UserStorageTestProvider provider = node.provider(session);
+        UserModel found = provider.getUserById(realm, keycloakId(user));
+
+        if (!provider.isValid(
+            realm,
+            found,
+            UserCredentialModel.password(PASSWORD)
+        )) {
+            failures.add("user " + user + ": password rejected");
+        }
+
+        session.commit();
+
+        Long recorded = node.tracker.getLastLogin(TENANT, Integer.toString(user));
+
+        if (recorded != null) {
+            loggedIn.accumulateAndGet(user, recorded, Math::max);
+        }
+    }
+
+    /**
+     * Writes the first name of the user on node A, which only the worker
+     * owning the user does, and reads it back.
+     */
+    private void write(int user, long version) {
+        TestSession session = nodeA.factory.create();
+        UserModel found = nodeA.provider(session)
+            .getUserById(realm, keycloakId(user));
+        found.setSingleAttribute("firstName", Long.toString(version));
+        session.commit();
+        committed.set(user, version);
+
+        long seen = firstName(nodeA, user);
+
+        if (seen != version) {
+            failures.add(
+                "user " + user + ": wrote " + version +
+                ", read back " + seen
+            );
+        }
+    }
+
+    private long firstName(Node node, int user) {
+        TestSession session = node.factory.create();
+        UserModel found = node.provider(session)
+            .getUserById(realm, keycloakId(user));
+        session.commit();
+
+        return Long.parseLong(found.getFirstAttribute("firstName"));
+    }
+
+    private String keycloakId(int user) {
+        return StorageId.keycloakId(model, Integer.toString(user));
+    }
+
+    /**
+     * Checks that every user cached by the node carries the committed
+     * first name.
+     */
+    private void assertCurrent(Node node, String name) {
+        for (int user = 0; user < USERS; user++) {
+            UserSnapshot snapshot =
+                node.cache.getById(TENANT, Integer.toString(user));
+
+            if (snapshot != null) {
+                assertEquals(
+                    committed.get(user),
+                    Long.parseLong(snapshot.toEntity().getFirstName()),
+                    name + " holds a stale copy of user " + user
+                );
+            }
+        }
+    }
+
+    /**
+     * Writes the pending last logins and checks that every login accepted
+     * by a tracker is in the database.
+     */
+    private void assertLoginsWritten() throws SQLException {
+        nodeA.tracker.flush();
+        nodeB.tracker.flush();
+
+        try (Statement statement = keepAlive.createStatement();
+             ResultSet rs = statement.executeQuery(
+                 "SELECT id, last_login FROM users"
+             )) {
+            while (rs.next()) {
+                int user = Integer.parseInt(rs.getString(1));
+                long written = rs.getLong(2);
+
+                assertTrue(
+                    written >= loggedIn.get(user),
+                    "last login " + loggedIn.get(user) + " of user " + user +
+                        " was lost, the database has " + written
+                );
+            }
+        }
+    }
+
+    /**
+     * Returns a session's entity manager: it reads and searches users with
+     * JDBC and writes the first names changed in the session when flushed.
+     */
+    private TestEntityManager entityManager() {
+        Map<UserEntity, String> loaded = new IdentityHashMap<UserEntity, String>();
+
+        return new TestEntityManager()
+            .withConnections(new TestEntityManager.ConnectionSource() {
+                @Override
+                public Connection take() {
+                    return takeConnection();
+                }
+
+                @Override
+                public void release(Connection connection) {
+                    pool.add(connection);
+                }
+            })
+            .onQuery("getUserById", call -> load(loaded, select(
+                "realm = ? AND id = ?",
+                0,
+                1,
+                (String)call.get("realm"),
+                (String)call.get("id")
+            )))
+            .onQuery("searchForUser", call -> load(loaded, select(
+                "realm = ? AND (LOWER(username) LIKE ? OR email LIKE ?)",
+                call.getFirst(),
+                call.getMax(),
+                (String)call.get("realm"),
+                (String)call.get("search"),
+                (String)call.get("search")
+            )))
+            .onFlush(entity -> {
+                if (entity instanceof UserEntity &&
+                    loaded.containsKey(entity) &&
+                    !((UserEntity)entity).getFirstName()
+                        .equals(loaded.get(entity))) {
+                    updateFirstName((UserEntity)entity);
+                }
+            });
+    }
+
+    private List<UserEntity> load(
+        Map<UserEntity, String> loaded,
+        List<UserEntity> result
+    ) {
+        for (UserEntity entity : result) {
+            loaded.put(entity, entity.getFirstName());
+        }
+
+        return result;
+    }
+
+    private List<UserEntity> select(
+        String condition,
+        int first,
+        int max,
+        String... parameters
+    ) {
+        Connection connection = takeConnection();
+
+        try (PreparedStatement ps = connection.prepareStatement(
+            "SELECT id, realm, username, email, password_hash, firstname, " +
+            "last_login FROM users WHERE " + condition +
+            " ORDER BY username LIMIT ? OFFSET ?"
+        )) {
+            for (int i = 0; i < parameters.length; i++) {
+                ps.setString(i + 1, parameters[i]);
+            }
+
+            ps.setInt(parameters.length + 1, max);
+            ps.setInt(parameters.length + 2, first);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                List<UserEntity> result = new ArrayList<UserEntity>();
+
+                while (rs.next()) {
+                    UserEntity entity = new UserEntity();
+                    entity.setId(rs.getString(1));
+                    entity.setRealm(rs.getString(2));
+                    entity.setUsername(rs.getString(3));
+                    entity.setEmail(rs.getString(4));
+                    entity.setPasswordHash(rs.getString(5));
+                    entity.setFirstName(rs.getString(6));
+                    long lastLogin = rs.getLong(7);
+                    entity.setLastLogin(rs.wasNull() ? null : lastLogin);
+                    result.add(entity);
+                }
+
+                return result;
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        } finally {
+            pool.add(connection);
+        }
+    }
+
+    private void updateFirstName(UserEntity entity) {
+        Connection connection = takeConnection();
+
+        try (PreparedStatement ps = connection.prepareStatement(
+            "UPDATE users SET firstname = ? WHERE realm = ? AND id = ?"
+        )) {
+            ps.setString(1, entity.getFirstName());
+            ps.setString(2, entity.getRealm());
+            ps.setString(3, entity.getId());
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        } finally {
+            pool.add(connection);
+        }
+    }
+
+    private Connection takeConnection() {
+        long start = System.nanoTime();
+
+        try {
+            return pool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new PersistenceException(e);
+        } finally {
+            poolWaitNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * The state a provider factory shares between the sessions of one
+     * Keycloak node.
+     */
+    private final class Node {
+        private final UserCache cache = new UserCache(USERS / 2, 100L, 60000L);
+        private final SearchResultCache searchCache =
+            new SearchResultCache(USERS / 4, 200, 5000L);
+        private final GroupResolver groups = new GroupResolver(100, 60000L);
+        private final TestSessionFactory factory = new TestSessionFactory(
+            UserStorageStressTest.this::entityManager
+        );
+        private final UserCacheInvalidator invalidator;
+        private final UserDatabaseGuard guard;
+        private final LastLoginTracker tracker;
+
+        private Node(InvalidationChannel channel) {
+            invalidator = new UserCacheInvalidator(
+                cache,
+                searchCache,
+                channel,
+                10L,
+                500
+            );
+            guard = new UserDatabaseGuard(
+                cache,
+                0L,
+                new CircuitBreaker(
+                    20,
+                    50,
+                    10000L,
+                    30000L,
+                    (from, to) -> failures.add(
+                        "circuit breaker went from " + from + " to " + to
+                    )
+                ),
+                2
+            );
+            tracker = new LastLoginTracker(
+                factory.get(),
+                new SqlTracer("stress", -1L, 0.0),
+                TRACKED_LOGINS,
+                16,
+                5L,
+                10L
+            );
+        }
+
+        private UserStorageTestProvider provider(TestSession session) {
+            return new UserStorageTestProvider(
+                session.get(),
+                model,
+                cache,
+                searchCache,
+                invalidator,
+                guard,
+                tracker,
+                groups,
+                100,
+                null
+            );
+        }
+
+        private void close() {
+            tracker.close();
+            invalidator.close();
+            guard.close();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/* Copyright 2024  B1 Systems GmbH <info@b1-systems.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * */
+
+
+package de.linuxfoo.keycloak.storage.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Queries of {@link UserStorageTestProvider} over seven users, who are
+ * all members of one group whose members are read in pages of three.
+ */
+public class UserStorageTestProviderTest {
+    private static final String REALM = "test";
+    private static final String PATH = "/staff";
+    private final List<String> members = IntStream.rangeClosed(1, 7)
+        .mapToObj(i -> "u" + i)
+        .collect(Collectors.toList());
+    private final List<TestEntityManager> pageSessions =
+        new ArrayList<TestEntityManager>();
+    private final ComponentModel model = new ComponentModel();
+    private final UserCache cache = new UserCache(100, 60000L, 60000L);
+    private final SearchResultCache searchCache =
+        new SearchResultCache(10, 10, 60000L);
+    private final TestEntityManager em = new TestEntityManager()
+        .onQuery("searchForUser", call -> members.stream()
+            .skip(call.getFirst())
+            .limit(call.getMax())
+            .map(UserStorageTestProviderTest::user)
+            .collect(Collectors.toList()))
+        .onQuery("getUserById", call -> List.of(user((String)call.get("id"))));
+    private UserCacheInvalidator invalidator;
+    private UserDatabaseGuard guard;
+    private UserStorageTestProvider provider;
+
+    @BeforeEach
+    public void setUp() {
+        model.setId("component");
+        model.setName("test");
+        model.put("readOnly", "true");
+        model.put(SqlTracer.THRESHOLD, "-1");
+
+        TestSessionFactory factory = new TestSessionFactory(this::pageSession);
+        invalidator = new UserCacheInvalidator(
+            cache,
+            searchCache,
+            new LocalInvalidationChannel(),
+            3600000L,
+            500
+        );
+        guard = new UserDatabaseGuard(
+            cache,
+            0L,
+            new CircuitBreaker(20, 50, 10000L, 30000L, (from, to) -> {}),
+            1
+        );
+        provider = new UserStorageTestProvider(
+            new TestSession(em, factory.get()).get(),
+            model,
+            cache,
+            searchCache,
+            invalidator,
+            guard,
+            null,
+            new GroupResolver(0, 0L),
+            3,
+            null
+        );
+    }
+
+    @AfterEach
+    public void tearDown() {
+        invalidator.close();
+        guard.close();
+    }
+
+    @Test
+    public void readsAllPagesAfterTheLastId() {
+        assertEquals(members, memberIds(null, null));
+        assertEquals(
+            List.of("0..3 after ", "0..3 after u3", "0..3 after u6"),
+            pages()
+        );
+    }
+
+    @Test
+    public void skipsOnlyOnTheFirstPage() {
+        assertEquals(List.of("u3", "u4", "u5", "u6"), memberIds(2, 4));
+        assertEquals(List.of("2..3 after ", "0..3 after u5"), pages());
+    }
+
+    @Test
+    public void stopsAtTheLimit() {
+        assertEquals(List.of("u1", "u2"), memberIds(0, 2));
+        assertEquals(List.of("0..2 after "), pages());
+    }
+
+    @Test
+    public void searchCachesOnlyTheIdsOfAPage() {
+        assertEquals(List.of("u1", "u2", "u3"), search());
+        assertEquals(1, searchCache.size());
+        assertEquals(0, cache.size());
+
+        assertEquals(List.of("u1", "u2", "u3"), search());
+        assertEquals(
+            List.of("searchForUser", "getUserById", "getUserById", "getUserById"),
+            em.getCalls().stream()
+                .map(TestEntityManager.Call::getName)
+                .collect(Collectors.toList())
+        );
+        assertEquals(3, cache.size());
+    }
+
+    private List<String> search() {
+        return provider
+            .searchForUserStream(realm(), Map.of(UserModel.SEARCH, "u"), 0, 3)
+            .map(UserModel::getUsername)
+            .collect(Collectors.toList());
+    }
+
+    private List<String> memberIds(Integer first, Integer max) {
+        return provider.getGroupMembersStream(realm(), group(), first, max)
+            .map(UserModel::getUsername)
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Describes the page read by each job session as
+     * "first..max after id".
+     */
+    private List<String> pages() {
+        return pageSessions.stream()
+            .flatMap(em -> em.getCalls().stream())
+            .map(call -> call.getFirst() + ".." + call.getMax() +
+                " after " + call.get("after"))
+            .collect(Collectors.toList());
+    }
+
+    private synchronized TestEntityManager pageSession() {
+        TestEntityManager em = new TestEntityManager().onQuery(
+            "getGroupMembersAfter",
+            call -> {
+                assertEquals(REALM, call.get("realm"));
+                assertEquals(PATH, call.get("path"));
+
+                String after = (String)call.get("after");
+
+                return members.stream()
+                    .filter(id -> id.compareTo(after) > 0)
+                    .skip(call.getFirst())
+                    .limit(call.getMax())
+                    .map(UserStorageTestProviderTest::user)
+                    .collect(Collectors.toList());
+            }
+        );
+        pageSessions.add(em);
+
+        return em;
+    }
+
+    private static UserEntity user(String id) {
+        UserEntity entity = new UserEntity();
+        entity.setId(id);
+        entity.setRealm(REALM);
+        entity.setUsername(id);
+
+        return entity;
+    }
+
+    private RealmModel realm() {
+        return (RealmModel)Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { RealmModel.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getId":
+                    case "getName":
+                        return REALM;
+                    default:
+                        throw new UnsupportedOperationException(
+                            method.getName()
+                        );
+                }
+            }
+        );
+    }
+
+    private GroupModel group() {
+        return (GroupModel)Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { GroupModel.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getId":
+                        return "g1";
+                    case "getName":
+                        return PATH.substring(1);
+                    case "getParentId":
+                    case "getParent":
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(
+                            method.getName()
+                        );
+                }
+            }
+        );
+    }
+}